@@ -0,0 +1,287 @@
+package edu.utsa.mobbed;
+
+import java.sql.Array;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Rows of a query result stored column by column. Double precision columns are
+ * stored as double[] with NaN for null, bigint and oid columns as long[],
+ * integer columns as int[], uuid columns as UUID[], timestamp columns as
+ * Timestamp[], array columns as Object[] and all other columns as String[].
+ * Values are read from the result set with their typed getters, so the driver
+ * can transfer them in binary instead of as text.
+ * 
+ * @author Arif Hossain, Jeremy Cockfield, Kay Robbins
+ * 
+ */
+public class ColumnarRows {
+
+	/**
+	 * The names of the columns
+	 */
+	private String[] columnNames;
+	/**
+	 * The arrays holding the values of each column
+	 */
+	private Object[] columns;
+	/**
+	 * The null values of each column
+	 */
+	private BitSet[] nulls;
+	/**
+	 * The number of rows
+	 */
+	private int rowCount;
+	/**
+	 * The database types of the columns
+	 */
+	private String[] types;
+
+	/**
+	 * Creates a ColumnarRows object.
+	 * 
+	 * @param columnNames
+	 *            the names of the columns
+	 * @param types
+	 *            the database types of the columns
+	 * @param columns
+	 *            the arrays holding the values of each column
+	 * @param nulls
+	 *            the null values of each column
+	 * @param rowCount
+	 *            the number of rows
+	 */
+	private ColumnarRows(String[] columnNames, String[] types,
+			Object[] columns, BitSet[] nulls, int rowCount) {
+		this.columnNames = columnNames;
+		this.types = types;
+		this.columns = columns;
+		this.nulls = nulls;
+		this.rowCount = rowCount;
+	}
+
+	/**
+	 * Gets the values of a column.
+	 * 
+	 * @param index
+	 *            the index of the column
+	 * @return the array holding the values of the column
+	 */
+	public Object getColumn(int index) {
+		return columns[index];
+	}
+
+	/**
+	 * Gets the values of a column.
+	 * 
+	 * @param columnName
+	 *            the name of the column
+	 * @return the array holding the values of the column
+	 * @throws MobbedException
+	 *             if the column is not in the rows
+	 */
+	public Object getColumn(String columnName) throws MobbedException {
+		return columns[getColumnIndex(columnName)];
+	}
+
+	/**
+	 * Gets the index of a column.
+	 * 
+	 * @param columnName
+	 *            the name of the column
+	 * @return the index of the column
+	 * @throws MobbedException
+	 *             if the column is not in the rows
+	 */
+	public int getColumnIndex(String columnName) throws MobbedException {
+		for (int i = 0; i < columnNames.length; i++) {
+			if (columnNames[i].equalsIgnoreCase(columnName))
+				return i;
+		}
+		throw new MobbedException("column " + columnName + " is not found");
+	}
+
+	/**
+	 * Gets the names of the columns.
+	 * 
+	 * @return the names of the columns
+	 */
+	public String[] getColumnNames() {
+		return columnNames;
+	}
+
+	/**
+	 * Gets the database type of a column.
+	 * 
+	 * @param index
+	 *            the index of the column
+	 * @return the database type of the column
+	 */
+	public String getColumnType(int index) {
+		return types[index];
+	}
+
+	/**
+	 * Gets the number of rows.
+	 * 
+	 * @return the number of rows
+	 */
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * Checks if a value is null.
+	 * 
+	 * @param row
+	 *            the index of the row
+	 * @param column
+	 *            the index of the column
+	 * @return true if the value is null, false if otherwise
+	 */
+	public boolean isNull(int row, int column) {
+		return nulls[column].get(row);
+	}
+
+	/**
+	 * Reads a result set into columns. The result set is closed when it has
+	 * been read.
+	 * 
+	 * @param rs
+	 *            the result set
+	 * @param typeMap
+	 *            a map that contains the column types of the database
+	 * @return the columns of the result set
+	 * @throws SQLException
+	 *             if an error occurs
+	 */
+	static ColumnarRows read(ResultSet rs, Map<String, String> typeMap)
+			throws SQLException {
+		try {
+			ResultSetMetaData rsMeta = rs.getMetaData();
+			int columnCount = rsMeta.getColumnCount();
+			String[] columnNames = new String[columnCount];
+			String[] types = new String[columnCount];
+			Object[] columns = new Object[columnCount];
+			BitSet[] nulls = new BitSet[columnCount];
+			int capacity = 64;
+			for (int i = 0; i < columnCount; i++) {
+				columnNames[i] = rsMeta.getColumnName(i + 1);
+				types[i] = typeMap.get(columnNames[i].toLowerCase());
+				if (types[i] == null)
+					types[i] = rsMeta.getColumnTypeName(i + 1);
+				columns[i] = newColumn(types[i], capacity);
+				nulls[i] = new BitSet();
+			}
+			int rowCount = 0;
+			while (rs.next()) {
+				if (rowCount == capacity) {
+					capacity *= 2;
+					for (int i = 0; i < columnCount; i++)
+						columns[i] = growColumn(columns[i], capacity);
+				}
+				for (int i = 0; i < columnCount; i++)
+					readValue(rs, i, rowCount, columns[i], nulls[i]);
+				rowCount++;
+			}
+			for (int i = 0; i < columnCount; i++)
+				columns[i] = growColumn(columns[i], rowCount);
+			return new ColumnarRows(columnNames, types, columns, nulls,
+					rowCount);
+		} finally {
+			rs.close();
+		}
+	}
+
+	/**
+	 * Resizes a column array.
+	 * 
+	 * @param column
+	 *            the column array
+	 * @param length
+	 *            the new length of the column array
+	 * @return a column array of the new length holding the old values
+	 */
+	private static Object growColumn(Object column, int length) {
+		if (column instanceof double[])
+			return Arrays.copyOf((double[]) column, length);
+		if (column instanceof long[])
+			return Arrays.copyOf((long[]) column, length);
+		if (column instanceof int[])
+			return Arrays.copyOf((int[]) column, length);
+		return Arrays.copyOf((Object[]) column, length);
+	}
+
+	/**
+	 * Creates a column array for a database type.
+	 * 
+	 * @param type
+	 *            the database type of the column
+	 * @param length
+	 *            the length of the column array
+	 * @return an empty column array
+	 */
+	private static Object newColumn(String type, int length) {
+		if (type.equalsIgnoreCase("double precision"))
+			return new double[length];
+		if (type.equalsIgnoreCase("bigint") || type.equalsIgnoreCase("oid"))
+			return new long[length];
+		if (type.equalsIgnoreCase("integer"))
+			return new int[length];
+		if (type.equalsIgnoreCase("uuid"))
+			return new UUID[length];
+		if (type.toLowerCase().startsWith("timestamp"))
+			return new Timestamp[length];
+		if (type.equalsIgnoreCase("ARRAY"))
+			return new Object[length];
+		return new String[length];
+	}
+
+	/**
+	 * Reads a value of the current row into a column array.
+	 * 
+	 * @param rs
+	 *            the result set
+	 * @param index
+	 *            the index of the column
+	 * @param row
+	 *            the index of the row
+	 * @param column
+	 *            the column array
+	 * @param nulls
+	 *            the null values of the column
+	 * @throws SQLException
+	 *             if an error occurs
+	 */
+	private static void readValue(ResultSet rs, int index, int row,
+			Object column, BitSet nulls) throws SQLException {
+		int rsIndex = index + 1;
+		if (column instanceof double[]) {
+			double value = rs.getDouble(rsIndex);
+			((double[]) column)[row] = rs.wasNull() ? Double.NaN : value;
+		} else if (column instanceof long[]) {
+			((long[]) column)[row] = rs.getLong(rsIndex);
+		} else if (column instanceof int[]) {
+			((int[]) column)[row] = rs.getInt(rsIndex);
+		} else if (column instanceof UUID[]) {
+			((UUID[]) column)[row] = (UUID) rs.getObject(rsIndex);
+		} else if (column instanceof Timestamp[]) {
+			((Timestamp[]) column)[row] = rs.getTimestamp(rsIndex);
+		} else if (column instanceof String[]) {
+			((String[]) column)[row] = rs.getString(rsIndex);
+		} else {
+			Array array = rs.getArray(rsIndex);
+			((Object[]) column)[row] = array == null ? null : array.getArray();
+		}
+		if (rs.wasNull())
+			nulls.set(row);
+	}
+
+}
@@ -0,0 +1,274 @@
+package edu.utsa.mobbed;
+
+import java.util.Properties;
+
+/**
+ * Driver settings of a database connection. Options that are not set keep the
+ * driver defaults. The options are passed to the driver as connection
+ * properties and can be stored with the database credentials.
+ * 
+ * @author Arif Hossain, Jeremy Cockfield, Kay Robbins
+ * 
+ */
+public class ConnectionOptions {
+
+	/**
+	 * Transfers values in binary instead of text if true, null for the driver
+	 * default
+	 */
+	private Boolean binaryTransfer;
+	/**
+	 * The number of rows fetched at a time by default, null for the driver
+	 * default
+	 */
+	private Integer defaultRowFetchSize;
+	/**
+	 * The number of executions before a statement is prepared on the server,
+	 * null for the driver default
+	 */
+	private Integer prepareThreshold;
+	/**
+	 * The socket receive buffer size in bytes, null for the driver default
+	 */
+	private Integer receiveBufferSize;
+	/**
+	 * Rewrites batched inserts into multi-row inserts if true, null for the
+	 * driver default
+	 */
+	private Boolean reWriteBatchedInserts;
+	/**
+	 * The socket send buffer size in bytes, null for the driver default
+	 */
+	private Integer sendBufferSize;
+	/**
+	 * The names of the connection properties of the options
+	 */
+	private static final String[] propertyNames = { "binaryTransfer",
+			"defaultRowFetchSize", "prepareThreshold", "receiveBufferSize",
+			"reWriteBatchedInserts", "sendBufferSize" };
+
+	/**
+	 * Creates a ConnectionOptions object with the driver defaults.
+	 */
+	public ConnectionOptions() {
+	}
+
+	/**
+	 * Gets whether values are transferred in binary.
+	 * 
+	 * @return true if binary transfer is on, null for the driver default
+	 */
+	public Boolean getBinaryTransfer() {
+		return binaryTransfer;
+	}
+
+	/**
+	 * Gets the number of rows fetched at a time by default.
+	 * 
+	 * @return the default fetch size, null for the driver default
+	 */
+	public Integer getDefaultRowFetchSize() {
+		return defaultRowFetchSize;
+	}
+
+	/**
+	 * Gets the number of executions before a statement is prepared on the
+	 * server.
+	 * 
+	 * @return the prepare threshold, null for the driver default
+	 */
+	public Integer getPrepareThreshold() {
+		return prepareThreshold;
+	}
+
+	/**
+	 * Gets the socket receive buffer size.
+	 * 
+	 * @return the receive buffer size in bytes, null for the driver default
+	 */
+	public Integer getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+
+	/**
+	 * Gets whether batched inserts are rewritten into multi-row inserts.
+	 * 
+	 * @return true if batched inserts are rewritten, null for the driver
+	 *         default
+	 */
+	public Boolean getReWriteBatchedInserts() {
+		return reWriteBatchedInserts;
+	}
+
+	/**
+	 * Gets the socket send buffer size.
+	 * 
+	 * @return the send buffer size in bytes, null for the driver default
+	 */
+	public Integer getSendBufferSize() {
+		return sendBufferSize;
+	}
+
+	/**
+	 * Sets whether values are transferred in binary.
+	 * 
+	 * @param binaryTransfer
+	 *            true to transfer values in binary, null for the driver
+	 *            default
+	 */
+	public void setBinaryTransfer(Boolean binaryTransfer) {
+		this.binaryTransfer = binaryTransfer;
+	}
+
+	/**
+	 * Sets the number of rows fetched at a time by default.
+	 * 
+	 * @param defaultRowFetchSize
+	 *            the default fetch size, null for the driver default
+	 */
+	public void setDefaultRowFetchSize(Integer defaultRowFetchSize) {
+		this.defaultRowFetchSize = defaultRowFetchSize;
+	}
+
+	/**
+	 * Sets the number of executions before a statement is prepared on the
+	 * server.
+	 * 
+	 * @param prepareThreshold
+	 *            the prepare threshold, null for the driver default
+	 */
+	public void setPrepareThreshold(Integer prepareThreshold) {
+		this.prepareThreshold = prepareThreshold;
+	}
+
+	/**
+	 * Sets the socket receive buffer size.
+	 * 
+	 * @param receiveBufferSize
+	 *            the receive buffer size in bytes, null for the driver default
+	 */
+	public void setReceiveBufferSize(Integer receiveBufferSize) {
+		this.receiveBufferSize = receiveBufferSize;
+	}
+
+	/**
+	 * Sets whether batched inserts are rewritten into multi-row inserts.
+	 * 
+	 * @param reWriteBatchedInserts
+	 *            true to rewrite batched inserts, null for the driver default
+	 */
+	public void setReWriteBatchedInserts(Boolean reWriteBatchedInserts) {
+		this.reWriteBatchedInserts = reWriteBatchedInserts;
+	}
+
+	/**
+	 * Sets the socket send buffer size.
+	 * 
+	 * @param sendBufferSize
+	 *            the send buffer size in bytes, null for the driver default
+	 */
+	public void setSendBufferSize(Integer sendBufferSize) {
+		this.sendBufferSize = sendBufferSize;
+	}
+
+	/**
+	 * Stores the options that are set in a property list.
+	 * 
+	 * @param prop
+	 *            the property list the options are stored in
+	 */
+	public void store(Properties prop) {
+		Object[] values = { binaryTransfer, defaultRowFetchSize,
+				prepareThreshold, receiveBufferSize, reWriteBatchedInserts,
+				sendBufferSize };
+		for (int i = 0; i < propertyNames.length; i++) {
+			if (values[i] != null)
+				prop.setProperty(propertyNames[i], values[i].toString());
+		}
+	}
+
+	/**
+	 * Gets the options that are set as connection properties.
+	 * 
+	 * @return the connection properties of the options
+	 */
+	public Properties toProperties() {
+		Properties prop = new Properties();
+		store(prop);
+		return prop;
+	}
+
+	/**
+	 * Gets the options that are set as a string, which is the same for equal
+	 * options.
+	 * 
+	 * @return a string that contains the options that are set
+	 */
+	public String toString() {
+		StringBuilder options = new StringBuilder();
+		Properties prop = toProperties();
+		for (int i = 0; i < propertyNames.length; i++) {
+			if (prop.containsKey(propertyNames[i]))
+				options.append(propertyNames[i]).append('=')
+						.append(prop.getProperty(propertyNames[i])).append(';');
+		}
+		return options.toString();
+	}
+
+	/**
+	 * Loads the options that are set in a property list.
+	 * 
+	 * @param prop
+	 *            the property list the options are loaded from
+	 * @return the connection options
+	 * @throws MobbedException
+	 *             if an option has an invalid value
+	 */
+	public static ConnectionOptions load(Properties prop)
+			throws MobbedException {
+		ConnectionOptions options = new ConnectionOptions();
+		try {
+			options.binaryTransfer = parseBoolean(prop, "binaryTransfer");
+			options.defaultRowFetchSize = parseInteger(prop,
+					"defaultRowFetchSize");
+			options.prepareThreshold = parseInteger(prop, "prepareThreshold");
+			options.receiveBufferSize = parseInteger(prop, "receiveBufferSize");
+			options.reWriteBatchedInserts = parseBoolean(prop,
+					"reWriteBatchedInserts");
+			options.sendBufferSize = parseInteger(prop, "sendBufferSize");
+		} catch (NumberFormatException ex) {
+			throw new MobbedException("Could not load the connection options\n"
+					+ ex.getMessage());
+		}
+		return options;
+	}
+
+	/**
+	 * Parses a boolean option.
+	 * 
+	 * @param prop
+	 *            the property list the option is loaded from
+	 * @param name
+	 *            the name of the option
+	 * @return the value of the option, null if it is not set
+	 */
+	private static Boolean parseBoolean(Properties prop, String name) {
+		String value = prop.getProperty(name);
+		return value == null ? null : Boolean.valueOf(value.trim());
+	}
+
+	/**
+	 * Parses an integer option.
+	 * 
+	 * @param prop
+	 *            the property list the option is loaded from
+	 * @param name
+	 *            the name of the option
+	 * @return the value of the option, null if it is not set
+	 */
+	private static Integer parseInteger(Properties prop, String name) {
+		String value = prop.getProperty(name);
+		return value == null ? null : Integer.valueOf(value.trim());
+	}
+
+}
@@ -0,0 +1,595 @@
+package edu.utsa.mobbed;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Bounded pool of connections to one database for one user. Connections are
+ * leased by ManageDB.lease and returned by ManageDB.close. A returned
+ * connection has its transaction rolled back, its cursors closed and auto
+ * commit turned on before it is leased again. Idle connections are validated
+ * before they are leased and are closed when they exceed the maximum lifetime.
+ * Validating, resetting and establishing connections talk to the server, so
+ * they are done outside the pool lock.
+ * 
+ * @author Arif Hossain, Jeremy Cockfield, Kay Robbins
+ * 
+ */
+public class ConnectionPool {
+
+	/**
+	 * True if the pool is closed
+	 */
+	private boolean closed;
+	/**
+	 * The number of connections being established outside the pool lock
+	 */
+	private int connecting;
+	/**
+	 * The times the open connections were created
+	 */
+	private HashMap<Connection, Long> created = new HashMap<Connection, Long>();
+	/**
+	 * The name of the database
+	 */
+	private String dbname;
+	/**
+	 * The number of connections closed because they were invalid or too old
+	 */
+	private long discards;
+	/**
+	 * The host name of the database
+	 */
+	private String hostname;
+	/**
+	 * The idle connections, most recently returned last
+	 */
+	private ArrayList<Connection> idle = new ArrayList<Connection>();
+	/**
+	 * The number of leases
+	 */
+	private long leases;
+	/**
+	 * The longest time in milliseconds a lease waited for a connection
+	 */
+	private long longestWait;
+	/**
+	 * The maximum milliseconds a connection is kept open
+	 */
+	private long maxLifetime = 1800000;
+	/**
+	 * The maximum number of open connections
+	 */
+	private int maxSize = 8;
+	/**
+	 * The maximum milliseconds a lease waits for a connection
+	 */
+	private long maxWait = 30000;
+	/**
+	 * The driver options of the connections, null for the driver defaults
+	 */
+	private ConnectionOptions options;
+	/**
+	 * The password of the database
+	 */
+	private String password;
+	/**
+	 * The number of leases that timed out waiting for a connection
+	 */
+	private long timeouts;
+	/**
+	 * The total milliseconds leases waited for a connection
+	 */
+	private long totalWait;
+	/**
+	 * The user name of the database
+	 */
+	private String username;
+	/**
+	 * The pools keyed by database, host, user, password digest and driver
+	 * options
+	 */
+	private static HashMap<String, ConnectionPool> pools = new HashMap<String, ConnectionPool>();
+	/**
+	 * The seconds a validation of an idle connection may take
+	 */
+	private static final int validationTimeout = 5;
+
+	/**
+	 * Creates a ConnectionPool object.
+	 * 
+	 * @param dbname
+	 *            the name of the database
+	 * @param hostname
+	 *            the host name of the database
+	 * @param username
+	 *            the user name of the database
+	 * @param password
+	 *            the password of the database
+	 * @param options
+	 *            the driver options of the connections, null for the driver
+	 *            defaults
+	 */
+	private ConnectionPool(String dbname, String hostname, String username,
+			String password, ConnectionOptions options) {
+		this.options = options;
+		this.dbname = dbname;
+		this.hostname = hostname;
+		this.username = username;
+		this.password = password;
+	}
+
+	/**
+	 * Closes the pool and its idle connections. Leased connections are closed
+	 * when they are returned. The next call to getPool creates a new pool.
+	 */
+	public synchronized void close() {
+		closed = true;
+		for (Connection dbCon : idle)
+			discard(dbCon);
+		idle.clear();
+		notifyAll();
+	}
+
+	/**
+	 * Gets the average time in milliseconds a lease waited for a connection.
+	 * 
+	 * @return the average wait, 0 if there were no leases
+	 */
+	public synchronized double getAverageWait() {
+		return leases == 0 ? 0 : (double) totalWait / leases;
+	}
+
+	/**
+	 * Gets the number of connections closed because they were invalid or
+	 * exceeded the maximum lifetime.
+	 * 
+	 * @return the number of discarded connections
+	 */
+	public synchronized long getDiscards() {
+		return discards;
+	}
+
+	/**
+	 * Gets the number of idle connections.
+	 * 
+	 * @return the number of idle connections
+	 */
+	public synchronized int getIdleCount() {
+		return idle.size();
+	}
+
+	/**
+	 * Gets the number of leased connections.
+	 * 
+	 * @return the number of leased connections
+	 */
+	public synchronized int getLeasedCount() {
+		return created.size() - idle.size();
+	}
+
+	/**
+	 * Gets the number of leases.
+	 * 
+	 * @return the number of leases
+	 */
+	public synchronized long getLeases() {
+		return leases;
+	}
+
+	/**
+	 * Gets the longest time in milliseconds a lease waited for a connection.
+	 * 
+	 * @return the longest wait
+	 */
+	public synchronized long getLongestWait() {
+		return longestWait;
+	}
+
+	/**
+	 * Gets the maximum milliseconds a connection is kept open.
+	 * 
+	 * @return the maximum lifetime of a connection
+	 */
+	public synchronized long getMaxLifetime() {
+		return maxLifetime;
+	}
+
+	/**
+	 * Gets the maximum number of open connections.
+	 * 
+	 * @return the maximum size of the pool
+	 */
+	public synchronized int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Gets the maximum milliseconds a lease waits for a connection.
+	 * 
+	 * @return the maximum wait
+	 */
+	public synchronized long getMaxWait() {
+		return maxWait;
+	}
+
+	/**
+	 * Gets the number of open connections.
+	 * 
+	 * @return the size of the pool
+	 */
+	public synchronized int getSize() {
+		return created.size();
+	}
+
+	/**
+	 * Gets the number of leases that timed out waiting for a connection.
+	 * 
+	 * @return the number of timeouts
+	 */
+	public synchronized long getTimeouts() {
+		return timeouts;
+	}
+
+	/**
+	 * Sets the maximum milliseconds a connection is kept open. Older
+	 * connections are closed when they are returned or leased.
+	 * 
+	 * @param maxLifetime
+	 *            the maximum lifetime of a connection, 0 for no maximum
+	 */
+	public synchronized void setMaxLifetime(long maxLifetime) {
+		this.maxLifetime = Math.max(maxLifetime, 0);
+	}
+
+	/**
+	 * Sets the maximum number of open connections.
+	 * 
+	 * @param maxSize
+	 *            the maximum size of the pool
+	 */
+	public synchronized void setMaxSize(int maxSize) {
+		this.maxSize = Math.max(maxSize, 1);
+		notifyAll();
+	}
+
+	/**
+	 * Sets the maximum milliseconds a lease waits for a connection.
+	 * 
+	 * @param maxWait
+	 *            the maximum wait
+	 */
+	public synchronized void setMaxWait(long maxWait) {
+		this.maxWait = Math.max(maxWait, 0);
+	}
+
+	/**
+	 * Leases a connection, waiting for one to be returned if the pool is at
+	 * its maximum size. Idle connections are validated and new connections
+	 * are established outside the pool lock, so other leases and releases do
+	 * not wait for the server.
+	 * 
+	 * @return a valid connection to the database
+	 * @throws MobbedException
+	 *             if an error occurs or no connection became available
+	 */
+	Connection lease() throws MobbedException {
+		long start = System.currentTimeMillis();
+		Connection dbCon;
+		while ((dbCon = reserve(start)) != null) {
+			if (!isExpired(dbCon) && isValid(dbCon)) {
+				recordLease(start);
+				return dbCon;
+			}
+			discard(dbCon);
+		}
+		boolean connected = false;
+		try {
+			dbCon = ManageDB.establishConnection(dbname, hostname, username,
+					password, options);
+			connected = true;
+		} finally {
+			if (!connected)
+				cancelReserved();
+		}
+		addReserved(dbCon, start);
+		return dbCon;
+	}
+
+	/**
+	 * Returns a leased connection to the pool. The session state of the
+	 * connection is reset outside the pool lock, and the connection is closed
+	 * instead if it cannot be reset or is too old.
+	 * 
+	 * @param dbCon
+	 *            the leased connection
+	 */
+	void release(Connection dbCon) {
+		if (!contains(dbCon))
+			return;
+		if (!reset(dbCon) || !addIdle(dbCon))
+			discard(dbCon);
+	}
+
+	/**
+	 * Adds a returned connection to the idle connections unless the pool is
+	 * closed or over its maximum size or the connection is too old.
+	 * 
+	 * @param dbCon
+	 *            the returned connection
+	 * @return true if the connection was added, false if it must be discarded
+	 */
+	private synchronized boolean addIdle(Connection dbCon) {
+		if (closed || created.size() > maxSize || isExpired(dbCon))
+			return false;
+		idle.add(dbCon);
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Adds a connection established for a reserved slot to the pool.
+	 * 
+	 * @param dbCon
+	 *            the new connection
+	 * @param start
+	 *            the time the lease started
+	 */
+	private synchronized void addReserved(Connection dbCon, long start) {
+		connecting--;
+		created.put(dbCon, System.currentTimeMillis());
+		recordLease(start);
+	}
+
+	/**
+	 * Frees a reserved slot whose connection could not be established.
+	 */
+	private synchronized void cancelReserved() {
+		connecting--;
+		notifyAll();
+	}
+
+	/**
+	 * Checks if a connection belongs to the pool.
+	 * 
+	 * @param dbCon
+	 *            a connection
+	 * @return true if the connection is open in the pool, false if otherwise
+	 */
+	private synchronized boolean contains(Connection dbCon) {
+		return created.containsKey(dbCon);
+	}
+
+	/**
+	 * Closes a connection and removes it from the pool.
+	 * 
+	 * @param dbCon
+	 *            the connection to close
+	 */
+	private void discard(Connection dbCon) {
+		remove(dbCon);
+		try {
+			dbCon.close();
+		} catch (SQLException ex) {
+			// the connection is discarded either way
+		}
+	}
+
+	/**
+	 * Checks if a connection exceeded the maximum lifetime.
+	 * 
+	 * @param dbCon
+	 *            a connection of the pool
+	 * @return true if the connection is too old, false if otherwise
+	 */
+	private synchronized boolean isExpired(Connection dbCon) {
+		return maxLifetime > 0
+				&& System.currentTimeMillis() - created.get(dbCon) > maxLifetime;
+	}
+
+	/**
+	 * Checks if a connection is still usable.
+	 * 
+	 * @param dbCon
+	 *            a connection of the pool
+	 * @return true if the connection is valid, false if otherwise
+	 */
+	private boolean isValid(Connection dbCon) {
+		try {
+			return dbCon.isValid(validationTimeout);
+		} catch (SQLException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Records the statistics of a lease.
+	 * 
+	 * @param start
+	 *            the time the lease started
+	 */
+	private synchronized void recordLease(long start) {
+		long waited = System.currentTimeMillis() - start;
+		leases++;
+		totalWait += waited;
+		longestWait = Math.max(longestWait, waited);
+	}
+
+	/**
+	 * Removes a discarded connection from the pool and wakes the leases
+	 * waiting for its slot.
+	 * 
+	 * @param dbCon
+	 *            the discarded connection
+	 */
+	private synchronized void remove(Connection dbCon) {
+		created.remove(dbCon);
+		discards++;
+		notifyAll();
+	}
+
+	/**
+	 * Takes an idle connection or reserves a slot for a new connection,
+	 * waiting for one to be returned if the pool is at its maximum size. The
+	 * idle connection is not validated, so the caller must check it before
+	 * leasing it.
+	 * 
+	 * @param start
+	 *            the time the lease started
+	 * @return an idle connection, null if a slot was reserved for a new
+	 *         connection
+	 * @throws MobbedException
+	 *             if the pool is closed or no connection became available
+	 */
+	private synchronized Connection reserve(long start)
+			throws MobbedException {
+		long deadline = start + maxWait;
+		while (true) {
+			if (closed)
+				throw new MobbedException("The connection pool of database "
+						+ dbname + " is closed");
+			if (!idle.isEmpty())
+				return idle.remove(idle.size() - 1);
+			if (created.size() + connecting < maxSize) {
+				connecting++;
+				return null;
+			}
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				timeouts++;
+				throw new MobbedException(
+						"Timed out waiting for a pooled connection to database "
+								+ dbname);
+			}
+			try {
+				wait(remaining);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new MobbedException(
+						"Interrupted while waiting for a pooled connection");
+			}
+		}
+	}
+
+	/**
+	 * Resets the session state of a connection. The current transaction is
+	 * rolled back, all cursors are closed and auto commit is turned on.
+	 * 
+	 * @param dbCon
+	 *            a connection of the pool
+	 * @return true if the connection was reset, false if otherwise
+	 */
+	private boolean reset(Connection dbCon) {
+		try {
+			if (dbCon.isClosed())
+				return false;
+			if (!dbCon.getAutoCommit())
+				dbCon.rollback();
+			dbCon.setAutoCommit(true);
+			Statement stmt = dbCon.createStatement();
+			try {
+				stmt.execute("CLOSE ALL");
+			} finally {
+				stmt.close();
+			}
+			return true;
+		} catch (SQLException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Closes the idle connections of all pools.
+	 */
+	public static synchronized void closeAll() {
+		for (ConnectionPool pool : pools.values())
+			pool.close();
+		pools.clear();
+	}
+
+	/**
+	 * Hashes a password, so the pool keys do not hold it in clear text.
+	 * 
+	 * @param password
+	 *            the password of the database
+	 * @return the hex SHA-256 digest of the password
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	private static String digest(String password) throws MobbedException {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			byte[] hash = md.digest((password == null ? "" : password)
+					.getBytes(Charset.forName("UTF-8")));
+			StringBuilder hex = new StringBuilder();
+			for (byte b : hash)
+				hex.append(String.format("%02x", b));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException ex) {
+			throw new MobbedException("Could not digest the password\n"
+					+ ex.getMessage());
+		}
+	}
+
+	/**
+	 * Gets the pool of a database and user, creating it if it does not exist.
+	 * 
+	 * @param dbname
+	 *            the name of the database
+	 * @param hostname
+	 *            the host name of the database
+	 * @param username
+	 *            the user name of the database
+	 * @param password
+	 *            the password of the database
+	 * @return the connection pool
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	public static ConnectionPool getPool(String dbname, String hostname,
+			String username, String password) throws MobbedException {
+		return getPool(dbname, hostname, username, password, null);
+	}
+
+	/**
+	 * Gets the pool of a database, user and driver options, creating it if it
+	 * does not exist. Callers with different passwords get different pools,
+	 * so a lease never reuses a connection opened with another password.
+	 * 
+	 * @param dbname
+	 *            the name of the database
+	 * @param hostname
+	 *            the host name of the database
+	 * @param username
+	 *            the user name of the database
+	 * @param password
+	 *            the password of the database
+	 * @param options
+	 *            the driver options of the connections, null for the driver
+	 *            defaults
+	 * @return the connection pool
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	public static synchronized ConnectionPool getPool(String dbname,
+			String hostname, String username, String password,
+			ConnectionOptions options) throws MobbedException {
+		String key = hostname + "/" + dbname + "|" + username + "|"
+				+ digest(password) + "|"
+				+ (options == null ? "" : options.toString());
+		ConnectionPool pool = pools.get(key);
+		if (pool == null || pool.closed) {
+			pool = new ConnectionPool(dbname, hostname, username, password,
+					options);
+			pools.put(key, pool);
+		}
+		return pool;
+	}
+
+}
@@ -272,16 +272,14 @@ public class EventTypes {
 		UUID eventTypeUuid = null;
 		HashMap<String, String> eventTypeTags;
 		HashMap<String, EventTypeTags> eventTypeTagMap = new HashMap<String, EventTypeTags>();
-		String query = "SELECT EVENT_TYPE, EVENT_TYPE_UUID FROM EVENT_TYPES WHERE EVENT_TYPE_UUID IN (";
+		String query = "SELECT EVENT_TYPE, EVENT_TYPE_UUID FROM EVENT_TYPES WHERE EVENT_TYPE_UUID = ANY(?::uuid[])";
 		int numUuids = eventTypeUuids.length;
-		for (int i = 0; i < numUuids - 1; i++)
-			query += "?,";
-		query += "?)";
+		String[] uuids = new String[numUuids];
+		for (int i = 0; i < numUuids; i++)
+			uuids[i] = UUID.fromString(eventTypeUuids[i]).toString();
 		try {
 			PreparedStatement pStmt = dbCon.prepareStatement(query);
-			for (int i = 0; i < numUuids; i++)
-				pStmt.setObject(i + 1, UUID.fromString(eventTypeUuids[i]),
-						Types.OTHER);
+			pStmt.setArray(1, dbCon.createArrayOf("varchar", uuids));
 			ResultSet rs = pStmt.executeQuery();
 			while (rs.next()) {
 				eventType = rs.getString(1).toUpperCase();
@@ -1,6 +1,9 @@
 package edu.utsa.mobbed;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -16,9 +19,23 @@ import java.sql.Timestamp;
 import java.sql.Types;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.postgresql.copy.CopyManager;
 import org.postgresql.largeobject.LargeObjectManager;
 
 /**
@@ -33,52 +50,112 @@ public class ManageDB {
 	/**
 	 * A hashmap that contains the column names of each database table
 	 */
-	private HashMap<String, String[]> columnMap;
+	private Map<String, String[]> columnMap;
 	/**
 	 * A connection to the database
 	 */
 	private Connection connection;
+	/**
+	 * The number of inserted rows at which addRows uses a binary COPY, 0 if
+	 * COPY is never used
+	 */
+	private int copyThreshold = 1000;
 	/**
 	 * A hashmap that contains the default column values of each database table
 	 */
-	private HashMap<String, String> defaultValues;
+	private Map<String, String> defaultValues;
+	/**
+	 * A map that contains the element types of the array columns
+	 */
+	private Map<String, String> elementTypes;
+	/**
+	 * The number of rows fetched from the server at a time by retrieveRows,
+	 * the defaultRowFetchSize driver option if it is set
+	 */
+	private int fetchSize = 1000;
 	/**
 	 * A hashmap that contains the keys of each database table
 	 */
-	private HashMap<String, String[]> keyMap;
+	private Map<String, String[]> keyMap;
+	/**
+	 * The listeners that receive an event for each executed statement
+	 */
+	private CopyOnWriteArrayList<QueryListener> listeners = new CopyOnWriteArrayList<QueryListener>();
+	/**
+	 * The pool the connection is leased from, null if it is not pooled
+	 */
+	private ConnectionPool pool;
+	/**
+	 * Fetches the next page of a data cursor in the background if true
+	 */
+	private boolean prefetch;
+	/**
+	 * Fetches data cursor pages in the background, created when first needed
+	 */
+	private ExecutorService prefetchExecutor;
+	/**
+	 * The page fetched ahead for each open data cursor
+	 */
+	private HashMap<String, CursorPrefetch> prefetches = new HashMap<String, CursorPrefetch>();
+	/**
+	 * A cache of the queries generated by retrieveRows keyed by query shape
+	 */
+	private LinkedHashMap<String, String> queryShapes;
+	/**
+	 * A cache of the prepared statements of the connection
+	 */
+	private StatementCache statementCache;
+	/**
+	 * The NumericStreams objects on the connection that buffer samples
+	 */
+	private ArrayList<NumericStreams> streams = new ArrayList<NumericStreams>();
 	/**
 	 * A hashmap that contains the column types of each database table
 	 */
-	private HashMap<String, String> typeMap;
+	private Map<String, String> typeMap;
 	/**
 	 * prints informative messages if true
 	 */
 	private boolean verbose;
 	/**
-	 * A query that retrieves column metadata of a database table
+	 * The days between the Java epoch and the PostgreSQL epoch 2000-01-01
 	 */
-	private static final String columnQuery = "SELECT column_default, column_name, data_type from information_schema.columns where table_schema = 'public' AND table_name = ?";
+	private static final long POSTGRES_EPOCH_DAYS = 10957;
 	/**
 	 * A hashmap that contains instances of ManageDB objects
 	 */
 	private static HashMap<ManageDB, String> dbMap;
 	/**
-	 * A query that retrieves the keys of a database table
+	 * Statements that create the indexes used by tag, attribute and entity
+	 * searches
 	 */
-	private static final String keyQuery = "SELECT pg_attribute.attname FROM pg_index, pg_class, pg_attribute"
-			+ " WHERE pg_class.oid = ?::regclass AND"
-			+ " indrelid = pg_class.oid AND"
-			+ " pg_attribute.attrelid = pg_class.oid AND"
-			+ " pg_attribute.attnum = any(pg_index.indkey)"
-			+ " AND indisprimary";
+	private static final String[] searchIndexes = {
+			"CREATE INDEX IF NOT EXISTS tags_upper_name_idx ON tags (UPPER(tag_name), tag_entity_uuid)",
+			"CREATE INDEX IF NOT EXISTS tags_entity_uuid_idx ON tags (tag_entity_uuid)",
+			"CREATE INDEX IF NOT EXISTS attributes_upper_value_idx ON attributes (UPPER(attribute_value), attribute_organizational_uuid)",
+			"CREATE INDEX IF NOT EXISTS attributes_organizational_uuid_idx ON attributes (attribute_organizational_uuid)",
+			"CREATE INDEX IF NOT EXISTS attributes_entity_uuid_idx ON attributes (attribute_entity_uuid)",
+			"CREATE INDEX IF NOT EXISTS collections_entity_uuid_idx ON collections (collection_entity_uuid)",
+			"CREATE INDEX IF NOT EXISTS comments_entity_uuid_idx ON comments (comment_entity_uuid)",
+			"CREATE INDEX IF NOT EXISTS datamaps_entity_uuid_idx ON datamaps (datamap_entity_uuid)",
+			"CREATE INDEX IF NOT EXISTS elements_dataset_uuid_idx ON elements (element_dataset_uuid)",
+			"CREATE INDEX IF NOT EXISTS events_dataset_uuid_idx ON events (event_dataset_uuid)",
+			"CREATE INDEX IF NOT EXISTS events_type_uuid_idx ON events (event_type_uuid)" };
 	/**
-	 * A query that retrieves the tables of a database
+	 * A query that retrieves the columns searched with regular expressions
 	 */
-	private static final String tableQuery = "SELECT table_name FROM information_schema.tables WHERE table_schema = 'public' ORDER BY table_name";
+	private static final String trigramColumnQuery = "SELECT table_name, column_name FROM information_schema.columns"
+			+ " WHERE table_schema = 'public' AND data_type = 'character varying'"
+			+ " ORDER BY table_name, column_name";
 	/**
 	 * The name of the template database
 	 */
 	private static final String templateName = "template1";
+	/**
+	 * The wall clock fields of a timestamp in the format of Timestamp.valueOf
+	 */
+	private static final Pattern timestampPattern = Pattern
+			.compile("(\\d{4})-(\\d{1,2})-(\\d{1,2}) (\\d{1,2}):(\\d{2}):(\\d{2})(?:\\.(\\d{1,9}))?");
 
 	/**
 	 * Creates a ManageDB object.
@@ -98,13 +175,87 @@ public class ManageDB {
 	 */
 	public ManageDB(String dbname, String hostname, String username,
 			String password, boolean verbose) throws MobbedException {
-		connection = establishConnection(dbname, hostname, username, password);
+		this(establishConnection(dbname, hostname, username, password, null),
+				null, null, verbose);
+	}
+
+	/**
+	 * Creates a ManageDB object whose connection uses driver options.
+	 * 
+	 * @param dbname
+	 *            the name of the database
+	 * @param hostname
+	 *            the host name of the database
+	 * @param username
+	 *            the user name of the database
+	 * @param password
+	 *            the password of the database
+	 * @param options
+	 *            the driver options of the connection, null for the driver
+	 *            defaults
+	 * @param verbose
+	 *            prints informative messages if true
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	public ManageDB(String dbname, String hostname, String username,
+			String password, ConnectionOptions options, boolean verbose)
+			throws MobbedException {
+		this(establishConnection(dbname, hostname, username, password,
+				options), null, options, verbose);
+	}
+
+	/**
+	 * Creates a ManageDB object from a connection.
+	 * 
+	 * @param connection
+	 *            a connection to the database
+	 * @param pool
+	 *            the pool the connection is leased from, null if it is not
+	 *            pooled
+	 * @param options
+	 *            the driver options of the connection, null for the driver
+	 *            defaults
+	 * @param verbose
+	 *            prints informative messages if true
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	private ManageDB(Connection connection, ConnectionPool pool,
+			ConnectionOptions options, boolean verbose) throws MobbedException {
+		this.connection = connection;
+		this.pool = pool;
+		if (options != null && options.getDefaultRowFetchSize() != null)
+			fetchSize = Math.max(options.getDefaultRowFetchSize(), 0);
+		statementCache = new StatementCache(connection, 64);
+		queryShapes = new LinkedHashMap<String, String>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				return size() > 256;
+			}
+		};
 		this.verbose = verbose;
 		setAutoCommit(false);
 		initializeHashMaps();
 		put(this);
 	}
 
+	/**
+	 * Adds a listener that receives an event for each statement executed by
+	 * this object, including key lookups and data cursor statements.
+	 * Listeners are called on the thread that executed the statement, which
+	 * is the prefetch thread for pages fetched ahead. Statements that other
+	 * classes such as NumericStreams execute on the connection, and the static
+	 * database creation and deletion methods, are not reported.
+	 * 
+	 * @param listener
+	 *            the listener to add
+	 */
+	public void addQueryListener(QueryListener listener) {
+		listeners.addIfAbsent(listener);
+	}
+
 	/**
 	 * Inserts or updates rows in the database. To insert rows, do not assign
 	 * values to the key columns. To update rows, assign values to the key
@@ -127,6 +278,41 @@ public class ManageDB {
 	public String[] addRows(String table, String[] columns, String[][] values,
 			String[] doubleColumns, Double[][] doubleValues)
 			throws MobbedException {
+		return addRows(table, columns, values, doubleColumns, doubleValues,
+				false);
+	}
+
+	/**
+	 * Inserts or updates rows in the database. To insert rows, do not assign
+	 * values to the key columns. To update rows, assign values to the key
+	 * columns that already exist in the database. In upsert mode all rows are
+	 * written with a single batch of INSERT ... ON CONFLICT DO UPDATE
+	 * statements instead of checking which keys exist first. Upsert mode
+	 * requires all primary key columns of the table to be given and needs
+	 * PostgreSQL 9.5 or later.
+	 * 
+	 * @param table
+	 *            the name of the database table
+	 * @param columns
+	 *            the names of the non-double database columns
+	 * @param values
+	 *            the values of the non-double database columns
+	 * @param doubleColumns
+	 *            the names of the double database columns database table
+	 * @param doubleValues
+	 *            the values of the double database columns
+	 * @param upsert
+	 *            true to insert or update with INSERT ... ON CONFLICT, false
+	 *            to check which keys exist first
+	 * @return the keys of the database rows that were inserted and/or updated
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	public String[] addRows(String table, String[] columns, String[][] values,
+			String[] doubleColumns, Double[][] doubleValues, boolean upsert)
+			throws MobbedException {
+		if (upsert)
+			return upsertRows(table, columns, values, doubleValues);
 		validateTableName(table);
 		validateColumns(columns);
 		int numRows = values.length;
@@ -137,11 +323,9 @@ public class ManageDB {
 		ArrayList<Integer> keyIndexes = findKeyIndexes(table, columns);
 		String insertQry = constructInsertQuery(table, columns);
 		String updateQry = constructUpdateQuery(keyIndexes, table, columns);
+		PreparedStatement insertStmt = null;
+		PreparedStatement updateStmt = null;
 		try {
-			PreparedStatement insertStmt = connection
-					.prepareStatement(insertQry);
-			PreparedStatement updateStmt = connection
-					.prepareStatement(updateQry);
 			for (int i = 0; i < numRows; i++) {
 				for (int j = 0; j < numValues; j++) {
 					if (!isEmpty(values[i][j]))
@@ -152,34 +336,73 @@ public class ManageDB {
 							values[i][j] = getDefaultValue(columns[j]);
 					}
 				}
+			}
+			HashSet<String> existingKeys = findExistingKeys(keyIndexes, table,
+					columns, values);
+			ArrayList<String[]> insertRows = new ArrayList<String[]>();
+			ArrayList<Double[]> insertDoubleRows = new ArrayList<Double[]>();
+			ArrayList<String[]> updateRows = new ArrayList<String[]>();
+			ArrayList<Double[]> updateDoubleRows = new ArrayList<Double[]>();
+			for (int i = 0; i < numRows; i++) {
 				if (!isEmpty(doubleValues))
 					currentDoubleValues = doubleValues[doubleIndex++];
 				else
 					currentDoubleValues = null;
-				if (keysExist(keyIndexes, table, columns, values[i])) {
-					setUpdateStatementValues(keyIndexes, updateStmt, columns,
-							values[i], currentDoubleValues);
-					if (verbose)
-						System.out.println(updateStmt);
-					updateStmt.addBatch();
+				if (!keysEmpty(keyIndexes, values[i])
+						&& existingKeys.contains(constructKeyString(keyIndexes,
+								columns, values[i]))) {
+					updateRows.add(values[i]);
+					updateDoubleRows.add(currentDoubleValues);
 				} else {
 					values[i] = generateKeys(keyIndexes, table, columns,
 							values[i]);
-					setInsertStatementValues(insertStmt, columns, values[i],
-							currentDoubleValues);
+					insertRows.add(values[i]);
+					insertDoubleRows.add(currentDoubleValues);
+				}
+				keyList[i] = addKeyValue(keyIndexes, values[i]);
+			}
+			int numInserts = insertRows.size();
+			int numUpdates = updateRows.size();
+			if (copyThreshold <= 0 || numInserts < copyThreshold
+					|| !copyRows(table, columns, insertRows, insertDoubleRows)) {
+				QueryEvent insertEvent = new QueryEvent();
+				insertStmt = statementCache.prepare(insertQry);
+				for (int i = 0; i < numInserts; i++) {
+					setInsertStatementValues(insertStmt, columns,
+							insertRows.get(i), insertDoubleRows.get(i));
 					if (verbose)
 						System.out.println(insertStmt);
 					insertStmt.addBatch();
-
 				}
-				keyList[i] = addKeyValue(keyIndexes, values[i]);
+				insertEvent.prepared(insertQry, numInserts);
+				int[] insertCounts = insertStmt.executeBatch();
+				insertEvent.executed();
+				insertEvent.fetched(countUpdates(insertCounts));
+				if (numInserts > 0)
+					fireQueryEvent(insertEvent);
+			}
+			QueryEvent updateEvent = new QueryEvent();
+			updateStmt = statementCache.prepare(updateQry);
+			for (int i = 0; i < numUpdates; i++) {
+				setUpdateStatementValues(keyIndexes, updateStmt, columns,
+						updateRows.get(i), updateDoubleRows.get(i));
+				if (verbose)
+					System.out.println(updateStmt);
+				updateStmt.addBatch();
 			}
-			insertStmt.executeBatch();
-			updateStmt.executeBatch();
+			updateEvent.prepared(updateQry, numUpdates);
+			int[] updateCounts = updateStmt.executeBatch();
+			updateEvent.executed();
+			updateEvent.fetched(countUpdates(updateCounts));
+			if (numUpdates > 0)
+				fireQueryEvent(updateEvent);
 		} catch (SQLException me) {
 			throw new MobbedException(
 					"Could not insert or update row(s) in the database\n"
 							+ me.getMessage());
+		} finally {
+			statementCache.release(insertStmt);
+			statementCache.release(updateStmt);
 		}
 		return keyList;
 	}
@@ -206,32 +429,66 @@ public class ManageDB {
 		String query = "SELECT MAX(DATASET_VERSION) AS LATESTVERSION"
 				+ " FROM DATASETS WHERE DATASET_NAMESPACE = ? AND DATASET_NAME = ?";
 		int version;
+		PreparedStatement selStmt = null;
 		try {
-			PreparedStatement selStmt = connection.prepareStatement(query);
+			QueryEvent event = new QueryEvent();
+			selStmt = statementCache.prepare(query);
 			selStmt.setString(1, namespace);
 			selStmt.setString(2, name);
+			event.prepared(query, 1);
 			ResultSet rs = selStmt.executeQuery();
+			event.executed();
 			rs.next();
 			version = rs.getInt(1);
+			rs.close();
+			event.fetched(1);
+			fireQueryEvent(event);
 			if (isUnique && version > 0)
 				throw new MobbedException("dataset version is not unique");
 		} catch (SQLException ex) {
 			throw new MobbedException(
 					"Could not execute query to determine dataset version\n"
 							+ ex.getMessage());
+		} finally {
+			statementCache.release(selStmt);
 		}
 		return version + 1;
 	}
 
 	/**
-	 * Closes a database connection.
+	 * Closes a database connection. A connection leased from a pool is
+	 * returned to the pool instead. The samples buffered by NumericStreams
+	 * objects on the connection are written first. When auto commit is off,
+	 * the open transaction is rolled back, including those samples, so call
+	 * commit first to keep them.
 	 * 
 	 * @throws MobbedException
 	 *             if an error occurs
 	 */
 	public void close() throws MobbedException {
 		try {
-			connection.close();
+			flushStreams();
+		} finally {
+			closeConnection();
+		}
+	}
+
+	/**
+	 * Closes the database connection or returns it to its pool.
+	 * 
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	private void closeConnection() throws MobbedException {
+		try {
+			cancelPrefetches();
+			if (prefetchExecutor != null)
+				prefetchExecutor.shutdown();
+			statementCache.close();
+			if (pool != null)
+				pool.release(connection);
+			else
+				connection.close();
 			remove(this);
 		} catch (SQLException ex) {
 			throw new MobbedException(
@@ -249,10 +506,27 @@ public class ManageDB {
 	 *             if an error occurs
 	 */
 	public void closeCursor(String name) throws MobbedException {
+		CursorPrefetch pending;
+		synchronized (prefetches) {
+			pending = prefetches.remove(name);
+		}
+		if (pending != null && isEmpty(awaitPrefetch(pending)))
+			return;
+		closeDataCursor(name);
+	}
+
+	/**
+	 * Closes a data cursor without waiting for a page fetched ahead.
+	 * 
+	 * @param name
+	 *            the name of the data cursor
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	private void closeDataCursor(String name) throws MobbedException {
 		String query = "CLOSE " + name;
 		try {
-			Statement stmt = connection.createStatement();
-			stmt.execute(query);
+			executeCursorStatement(query);
 		} catch (SQLException ex) {
 			throw new MobbedException("Could not close the data cursor\n"
 					+ ex.getMessage());
@@ -260,12 +534,15 @@ public class ManageDB {
 	}
 
 	/**
-	 * Commits the current database transaction.
+	 * Commits the current database transaction. The samples buffered by
+	 * NumericStreams objects on the connection are written first, so they are
+	 * part of the transaction.
 	 * 
 	 * @throws MobbedException
 	 *             if an error occurs
 	 */
 	public void commit() throws MobbedException {
+		flushStreams();
 		try {
 			connection.commit();
 		} catch (SQLException ex) {
@@ -274,6 +551,123 @@ public class ManageDB {
 		}
 	}
 
+	/**
+	 * Counts the rows in the database that match search criteria. Only the
+	 * count is transferred, not the rows.
+	 * 
+	 * @param table
+	 *            the name of the database table
+	 * @param regExp
+	 *            on if regular expressions are allowed, off if otherwise
+	 * @param tags
+	 *            the tags search criteria
+	 * @param attributes
+	 *            the attributes search criteria
+	 * @param columns
+	 *            the names of the non-double database columns
+	 * @param values
+	 *            the values of the non-double database columns
+	 * @param doubleColumns
+	 *            the names of the double database columns
+	 * @param doubleValues
+	 *            the values of the double database columns
+	 * @param range
+	 *            the range to search by double database columns
+	 * @return the number of rows found by the search criteria
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	public long countRows(String table, String regExp, String[][] tags,
+			String[][] attributes, String[] columns, String[][] values,
+			String[] doubleColumns, Double[][] doubleValues, double[][] range)
+			throws MobbedException {
+		validateTableName(table);
+		validateColumns(columns);
+		validateColumns(doubleColumns);
+		long count;
+		PreparedStatement pstmt = null;
+		try {
+			QueryEvent event = new QueryEvent();
+			pstmt = prepareRetrieveStatement("COUNT(*)",
+					table, false, 0, regExp, tags, attributes, columns, values,
+					doubleColumns, doubleValues, range, false, null, event);
+			if (verbose)
+				System.out.println(pstmt);
+			ResultSet rs = pstmt.executeQuery();
+			event.executed();
+			rs.next();
+			count = rs.getLong(1);
+			rs.close();
+			event.fetched(1);
+			fireQueryEvent(event);
+		} catch (SQLException ex) {
+			throw new MobbedException("Could not execute query to count rows\n"
+					+ ex.getMessage());
+		} finally {
+			statementCache.release(pstmt);
+		}
+		return count;
+	}
+
+	/**
+	 * Checks if any row in the database matches search criteria. The search
+	 * stops at the first matching row.
+	 * 
+	 * @param table
+	 *            the name of the database table
+	 * @param regExp
+	 *            on if regular expressions are allowed, off if otherwise
+	 * @param tags
+	 *            the tags search criteria
+	 * @param attributes
+	 *            the attributes search criteria
+	 * @param columns
+	 *            the names of the non-double database columns
+	 * @param values
+	 *            the values of the non-double database columns
+	 * @param doubleColumns
+	 *            the names of the double database columns
+	 * @param doubleValues
+	 *            the values of the double database columns
+	 * @param range
+	 *            the range to search by double database columns
+	 * @return true if a row is found by the search criteria, false if
+	 *         otherwise
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	public boolean existsRows(String table, String regExp, String[][] tags,
+			String[][] attributes, String[] columns, String[][] values,
+			String[] doubleColumns, Double[][] doubleValues, double[][] range)
+			throws MobbedException {
+		validateTableName(table);
+		validateColumns(columns);
+		validateColumns(doubleColumns);
+		boolean exists;
+		PreparedStatement pstmt = null;
+		try {
+			QueryEvent event = new QueryEvent();
+			pstmt = prepareRetrieveStatement("1", table,
+					true, 1, regExp, tags, attributes, columns, values,
+					doubleColumns, doubleValues, range, false, null, event);
+			if (verbose)
+				System.out.println(pstmt);
+			ResultSet rs = pstmt.executeQuery();
+			event.executed();
+			exists = rs.next();
+			rs.close();
+			event.fetched(exists ? 1 : 0);
+			fireQueryEvent(event);
+		} catch (SQLException ex) {
+			throw new MobbedException(
+					"Could not execute query to check if rows exist\n"
+							+ ex.getMessage());
+		} finally {
+			statementCache.release(pstmt);
+		}
+		return exists;
+	}
+
 	/**
 	 * Gets the auto commit mode.
 	 * 
@@ -366,6 +760,26 @@ public class ManageDB {
 		return doubleColumns;
 	}
 
+	/**
+	 * Gets the number of rows retrieveRows and retrieveColumns fetch from the
+	 * server at a time.
+	 * 
+	 * @return the number of rows per fetch, 0 if all rows are fetched at once
+	 */
+	public int getFetchSize() {
+		return fetchSize;
+	}
+
+	/**
+	 * Gets the prepared statement cache of the connection. The cache reports
+	 * its hits, misses and evictions and its capacity can be changed.
+	 * 
+	 * @return the prepared statement cache
+	 */
+	public StatementCache getStatementCache() {
+		return statementCache;
+	}
+
 	/**
 	 * Gets the keys of a database table.
 	 * 
@@ -377,6 +791,31 @@ public class ManageDB {
 		return keyMap.get(table.toLowerCase());
 	}
 
+	/**
+	 * Gets the key values of the last row of a page retrieved by
+	 * retrieveRowsAfter.
+	 * 
+	 * @param table
+	 *            the name of the database table
+	 * @param rows
+	 *            the rows of the page
+	 * @return the key values of the last row, null if there are no rows
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	public String[] getLastKey(String table, String[][] rows)
+			throws MobbedException {
+		if (isEmpty(rows))
+			return null;
+		String[] columns = columnMap.get(table.toLowerCase());
+		String[] keys = keyMap.get(table.toLowerCase());
+		String[] lastKey = new String[keys.length];
+		for (int i = 0; i < keys.length; i++)
+			lastKey[i] = rows[rows.length - 1][findIndexOfColumn(columns,
+					keys[i])];
+		return lastKey;
+	}
+
 	/**
 	 * Gets all of the tables from the database.
 	 * 
@@ -420,54 +859,253 @@ public class ManageDB {
 			String[][] tags, String[][] attributes, String[] columns,
 			String[][] values, String[] doubleColumns, Double[][] doubleValues,
 			double[][] range, String cursorName) throws MobbedException {
+		return retrieveRows(table, limit, regExp, tags, attributes, columns,
+				values, doubleColumns, doubleValues, range, cursorName, null);
+	}
+
+	/**
+	 * Retrieves the projected columns of rows from the database based on
+	 * search criteria. Only the projected columns are selected, in the order
+	 * they are given.
+	 * 
+	 * @param table
+	 *            the name of the database table
+	 * @param limit
+	 *            the maximum number of rows to retrieve
+	 * @param regExp
+	 *            on if regular expressions are allowed, off if otherwise
+	 * @param tags
+	 *            the tags search criteria
+	 * @param attributes
+	 *            the attributes search criteria
+	 * @param columns
+	 *            the names of the non-double database columns
+	 * @param values
+	 *            the values of the non-double database columns
+	 * @param doubleColumns
+	 *            the names of the double database columns
+	 * @param doubleValues
+	 *            the values of the double database columns
+	 * @param range
+	 *            the range to search by double database columns
+	 * @param cursorName
+	 *            the name of the data cursor
+	 * @param projection
+	 *            the names of the columns to retrieve, null to retrieve all
+	 *            columns
+	 * @return the rows found by the search criteria
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	public String[][] retrieveRows(String table, double limit, String regExp,
+			String[][] tags, String[][] attributes, String[] columns,
+			String[][] values, String[] doubleColumns, Double[][] doubleValues,
+			double[][] range, String cursorName, String[] projection)
+			throws MobbedException {
 		validateTableName(table);
 		validateColumns(columns);
 		validateColumns(doubleColumns);
+		String select = constructProjection(table, projection);
 		String[][] rows = null;
-		String qry = "SELECT * FROM " + table;
-		qry += constructQualificationQuery(table, regExp, tags, attributes,
-				columns, values, doubleColumns, doubleValues, range);
-		if (isEmpty(cursorName) && limit != Double.POSITIVE_INFINITY)
-			qry += " LIMIT " + (int) limit;
+		boolean limited = isEmpty(cursorName)
+				&& limit != Double.POSITIVE_INFINITY;
+		PreparedStatement pstmt = null;
 		try {
-			PreparedStatement pstmt = connection.prepareStatement(qry,
-					ResultSet.TYPE_SCROLL_INSENSITIVE,
-					ResultSet.CONCUR_READ_ONLY);
-			setQaulificationValues(pstmt, qry, tags, attributes, columns,
-					values, doubleColumns, doubleValues);
+			QueryEvent event = new QueryEvent();
+			pstmt = prepareRetrieveStatement(select, table,
+					limited, limit, regExp, tags, attributes, columns, values,
+					doubleColumns, doubleValues, range, false, null, event);
 			if (!isEmpty(cursorName) && limit != Double.POSITIVE_INFINITY) {
-				if (!dataCursorExists(cursorName))
-					createDataCursor(cursorName, pstmt.toString());
-				rows = next(cursorName, (int) limit);
+				rows = nextPage(cursorName, pstmt.toString(), (int) limit);
 			} else {
 				if (verbose)
 					System.out.println(pstmt);
-				rows = populateArray(pstmt.executeQuery());
+				ResultSet rs = pstmt.executeQuery();
+				event.executed();
+				rows = populateArray(rs);
+				event.fetched(rows.length);
+				fireQueryEvent(event);
 			}
 		} catch (SQLException ex) {
 			throw new MobbedException(
 					"Could not execute query to retrieve rows\n"
 							+ ex.getMessage());
+		} finally {
+			statementCache.release(pstmt);
 		}
 		return rows;
 	}
 
 	/**
-	 * Rollback the current transaction. Auto commit mode needs to be set to
-	 * false to create a transaction.
+	 * Retrieves a page of rows from the database based on search criteria
+	 * using keyset pagination. The rows are ordered by the keys of the table
+	 * and the page starts after the row with the given key values, so paging
+	 * needs no server side cursor. Pass the result of getLastKey for the
+	 * previous page to get the next page.
 	 * 
-	 * @throws MobbedException
-	 *             if an error occurs
-	 */
-	public void rollback() throws MobbedException {
-		try {
-			connection.rollback();
-		} catch (SQLException ex) {
-			throw new MobbedException(
-					"Could not rollback current transaction\n"
-							+ ex.getMessage());
-		}
-	}
+	 * @param table
+	 *            the name of the database table
+	 * @param limit
+	 *            the maximum number of rows in the page
+	 * @param regExp
+	 *            on if regular expressions are allowed, off if otherwise
+	 * @param tags
+	 *            the tags search criteria
+	 * @param attributes
+	 *            the attributes search criteria
+	 * @param columns
+	 *            the names of the non-double database columns
+	 * @param values
+	 *            the values of the non-double database columns
+	 * @param doubleColumns
+	 *            the names of the double database columns
+	 * @param doubleValues
+	 *            the values of the double database columns
+	 * @param range
+	 *            the range to search by double database columns
+	 * @param lastKey
+	 *            the key values of the last row of the previous page, null for
+	 *            the first page
+	 * @return the rows of the page
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	public String[][] retrieveRowsAfter(String table, double limit,
+			String regExp, String[][] tags, String[][] attributes,
+			String[] columns, String[][] values, String[] doubleColumns,
+			Double[][] doubleValues, double[][] range, String[] lastKey)
+			throws MobbedException {
+		table = table.toLowerCase();
+		validateTableName(table);
+		validateColumns(columns);
+		validateColumns(doubleColumns);
+		if (lastKey != null && lastKey.length != keyMap.get(table).length)
+			throw new MobbedException("last key must have a value for each key");
+		PreparedStatement pstmt = null;
+		try {
+			QueryEvent event = new QueryEvent();
+			pstmt = prepareRetrieveStatement("*", table,
+					limit != Double.POSITIVE_INFINITY, limit, regExp, tags,
+					attributes, columns, values, doubleColumns, doubleValues,
+					range, true, lastKey, event);
+			if (verbose)
+				System.out.println(pstmt);
+			ResultSet rs = pstmt.executeQuery();
+			event.executed();
+			String[][] rows = populateArray(rs);
+			event.fetched(rows.length);
+			fireQueryEvent(event);
+			return rows;
+		} catch (SQLException ex) {
+			throw new MobbedException(
+					"Could not execute query to retrieve rows\n"
+							+ ex.getMessage());
+		} finally {
+			statementCache.release(pstmt);
+		}
+	}
+
+	/**
+	 * Retrieves rows from the database based on search criteria as typed
+	 * columns. Each column is returned as one array whose type follows the
+	 * column type, so values are not formatted to strings and parsed back.
+	 * 
+	 * @param table
+	 *            the name of the database table
+	 * @param limit
+	 *            the maximum number of rows to retrieve
+	 * @param regExp
+	 *            on if regular expressions are allowed, off if otherwise
+	 * @param tags
+	 *            the tags search criteria
+	 * @param attributes
+	 *            the attributes search criteria
+	 * @param columns
+	 *            the names of the non-double database columns
+	 * @param values
+	 *            the values of the non-double database columns
+	 * @param doubleColumns
+	 *            the names of the double database columns
+	 * @param doubleValues
+	 *            the values of the double database columns
+	 * @param range
+	 *            the range to search by double database columns
+	 * @return the columns of the rows found by the search criteria
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	public ColumnarRows retrieveColumns(String table, double limit,
+			String regExp, String[][] tags, String[][] attributes,
+			String[] columns, String[][] values, String[] doubleColumns,
+			Double[][] doubleValues, double[][] range) throws MobbedException {
+		validateTableName(table);
+		validateColumns(columns);
+		validateColumns(doubleColumns);
+		PreparedStatement pstmt = null;
+		try {
+			QueryEvent event = new QueryEvent();
+			pstmt = prepareRetrieveStatement("*", table,
+					limit != Double.POSITIVE_INFINITY, limit, regExp, tags,
+					attributes, columns, values, doubleColumns, doubleValues,
+					range, false, null, event);
+			if (verbose)
+				System.out.println(pstmt);
+			ResultSet rs = pstmt.executeQuery();
+			event.executed();
+			ColumnarRows rows = ColumnarRows.read(rs, typeMap);
+			event.fetched(rows.getRowCount());
+			fireQueryEvent(event);
+			return rows;
+		} catch (SQLException ex) {
+			throw new MobbedException(
+					"Could not execute query to retrieve columns\n"
+							+ ex.getMessage());
+		} finally {
+			statementCache.release(pstmt);
+		}
+	}
+
+	/**
+	 * Reloads the schema metadata from the database. Use this after changing
+	 * the schema. The reloaded metadata replaces the shared snapshot, so this
+	 * object and ManageDB objects created afterwards see the change. Other
+	 * ManageDB objects that are already connected keep the metadata they were
+	 * created with until their own refreshSchema is called.
+	 * 
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	public void refreshSchema() throws MobbedException {
+		setSchema(SchemaSnapshot.refresh(connection));
+		queryShapes.clear();
+	}
+
+	/**
+	 * Removes a listener added by addQueryListener.
+	 * 
+	 * @param listener
+	 *            the listener to remove
+	 */
+	public void removeQueryListener(QueryListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Rollback the current transaction. Auto commit mode needs to be set to
+	 * false to create a transaction.
+	 * 
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	public void rollback() throws MobbedException {
+		try {
+			connection.rollback();
+		} catch (SQLException ex) {
+			throw new MobbedException(
+					"Could not rollback current transaction\n"
+							+ ex.getMessage());
+		}
+	}
 
 	/**
 	 * Sets the auto commit mode of the connection.
@@ -486,6 +1124,47 @@ public class ManageDB {
 		}
 	}
 
+	/**
+	 * Sets whether retrieveRows fetches the next page of a data cursor in the
+	 * background while the current page is processed. At most one page is
+	 * fetched ahead for each data cursor. An error of a background fetch is
+	 * thrown by the next retrieveRows or closeCursor call for that data cursor.
+	 * 
+	 * @param prefetch
+	 *            true to fetch data cursor pages ahead, false if otherwise
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	public void setPrefetch(boolean prefetch) throws MobbedException {
+		this.prefetch = prefetch;
+		if (!prefetch)
+			cancelPrefetches();
+	}
+
+	/**
+	 * Sets the number of rows retrieveRows fetches from the server at a time.
+	 * Rows are only fetched in pages when auto commit mode is off. The fetch
+	 * size starts at the defaultRowFetchSize driver option if it is set, or at
+	 * 1000 otherwise, and this setting replaces it.
+	 * 
+	 * @param fetchSize
+	 *            the number of rows per fetch, 0 to fetch all rows at once
+	 */
+	public void setFetchSize(int fetchSize) {
+		this.fetchSize = Math.max(fetchSize, 0);
+	}
+
+	/**
+	 * Sets the number of inserted rows at which addRows writes the inserts
+	 * with a binary COPY instead of a batch of INSERT statements.
+	 * 
+	 * @param copyThreshold
+	 *            the number of inserted rows, 0 to never use COPY
+	 */
+	public void setCopyThreshold(int copyThreshold) {
+		this.copyThreshold = copyThreshold;
+	}
+
 	/**
 	 * Adds elements to an array by index.
 	 * 
@@ -530,34 +1209,29 @@ public class ManageDB {
 	}
 
 	/**
-	 * Constructs a query for double database columns.
+	 * Constructs a query for double database columns. The bounds of each range
+	 * are parameters.
 	 * 
+	 * @param qry
+	 *            the query the double column conditions are appended to
 	 * @param doubleColumns
 	 *            the name of the double database columns
 	 * @param doubleValues
 	 *            the values of the double database columns
-	 * @param range
-	 *            the range to search by double database columns
-	 * @return a query string
 	 */
-	private String constructDoubleQuery(String[] doubleColumns,
-			Double[][] doubleValues, double[][] range) {
-		String query = "";
-		String columnName;
+	private void constructDoubleQuery(StringBuilder qry,
+			String[] doubleColumns, Double[][] doubleValues) {
 		int numColumns = doubleColumns.length;
-		int numValues;
 		for (int i = 0; i < numColumns; i++) {
-			numValues = doubleValues[i].length;
-			columnName = doubleColumns[i];
-			query += columnName + " BETWEEN ?+" + range[i][0] + " AND " + "?+"
-					+ range[i][1];
-			for (int j = 1; j < numValues; j++)
-				query += " OR " + columnName + " BETWEEN ?+" + range[i][0]
-						+ " AND " + "?+" + range[i][1];
+			int numValues = doubleValues[i].length;
+			for (int j = 0; j < numValues; j++) {
+				if (j > 0)
+					qry.append(" OR ");
+				qry.append(doubleColumns[i]).append(" BETWEEN ? AND ?");
+			}
 			if (i != numColumns - 1)
-				query += " AND ";
+				qry.append(" AND ");
 		}
-		return query;
 	}
 
 	/**
@@ -583,44 +1257,81 @@ public class ManageDB {
 	}
 
 	/**
-	 * Constructs a query for non-double database columns
+	 * Constructs a query for non-double database columns. Without regular
+	 * expressions the values of a column are bound as a single array, unless
+	 * the column type has no array form, in which case each value is bound
+	 * separately.
 	 * 
+	 * @param qry
+	 *            the query the column conditions are appended to
 	 * @param regExp
 	 *            on if regular expressions are allowed, off if otherwise
 	 * @param columns
 	 *            the names of the non-double database columns
 	 * @param values
 	 *            the values of the non-double database columns
-	 * @return a query string
 	 */
-	private String constructNonDoubleQuery(String regExp, String[] columns,
-			String[][] values) {
-		String type;
-		String columnName;
-		String query = "";
+	private void constructNonDoubleQuery(StringBuilder qry, String regExp,
+			String[] columns, String[][] values) {
 		int numColumns = columns.length;
 		for (int i = 0; i < numColumns; i++) {
-			type = typeMap.get(columns[i]);
-			if (type.equalsIgnoreCase("character varying"))
-				columnName = " UPPER(" + columns[i] + ")";
-			else
-				columnName = columns[i];
+			String type = typeMap.get(columns[i]);
+			boolean varchar = type.equalsIgnoreCase("character varying");
+			String columnName = varchar ? " UPPER(" + columns[i] + ")"
+					: columns[i];
 			int numValues = values[i].length;
-			if (type.equalsIgnoreCase("character varying")
-					&& regExp.equalsIgnoreCase("on")) {
-				query += columnName + " ~* ?";
+			if (varchar && regExp.equalsIgnoreCase("on")) {
+				qry.append(columnName).append(" ~* ?");
 				for (int j = 1; j < numValues; j++)
-					query += " OR " + columnName + " ~* ?";
+					qry.append(" OR ").append(columnName).append(" ~* ?");
+			} else if (varchar) {
+				qry.append(columnName).append(" = ANY(?::text[])");
+			} else if (lookupArrayCast(columns[i]) != null) {
+				qry.append(columnName).append(" = ANY(?::").append(type)
+						.append("[])");
 			} else {
-				query += columnName + " IN (?";
+				qry.append(columnName).append(" IN (?");
 				for (int j = 1; j < numValues; j++)
-					query += ",?";
-				query += ")";
+					qry.append(", ?");
+				qry.append(")");
 			}
 			if (i != numColumns - 1)
-				query += " AND ";
+				qry.append(" AND ");
+		}
+	}
+
+	/**
+	 * Constructs the select list of a projection. Each projected column must
+	 * be a column of the table.
+	 * 
+	 * @param table
+	 *            the name of the database table
+	 * @param projection
+	 *            the names of the columns to retrieve, null to retrieve all
+	 *            columns
+	 * @return the select list of the projection
+	 * @throws MobbedException
+	 *             if a projected column is not a column of the table
+	 */
+	private String constructProjection(String table, String[] projection)
+			throws MobbedException {
+		if (isEmpty(projection))
+			return "*";
+		String[] tableColumns = columnMap.get(table.toLowerCase());
+		StringBuilder select = new StringBuilder();
+		for (int i = 0; i < projection.length; i++) {
+			String column = projection[i].toLowerCase();
+			boolean found = false;
+			for (int j = 0; j < tableColumns.length && !found; j++)
+				found = tableColumns[j].equals(column);
+			if (!found)
+				throw new MobbedException("column " + projection[i]
+						+ " is not a column of table " + table);
+			if (i > 0)
+				select.append(", ");
+			select.append(column);
 		}
-		return query;
+		return select.toString();
 	}
 
 	/**
@@ -642,68 +1353,180 @@ public class ManageDB {
 	 *            the names of the double database columns
 	 * @param doubleValues
 	 *            the values of the double database columns
-	 * @param range
-	 *            the range to search by double database columns
 	 * @return a string query
 	 * @throws MobbedException
 	 *             if an error occurs
 	 */
 	private String constructQualificationQuery(String table, String regExp,
 			String[][] tags, String[][] attributes, String[] columns,
-			String[][] values, String[] doubleColumns, Double[][] doubleValues,
-			double[][] range) throws MobbedException {
-		String qry = "";
-		String closer = "";
-		String[] keys = keyMap.get(table);
-		if (tags != null || attributes != null) {
-			qry = " WHERE " + keys[0] + " IN (";
-			closer = ")";
+			String[][] values, String[] doubleColumns, Double[][] doubleValues)
+			throws MobbedException {
+		StringBuilder qry = new StringBuilder();
+		String entityKey = table + "." + keyMap.get(table)[0];
+		if (tags != null) {
+			qry.append(" WHERE ");
+			constructTagAttributesQuery(qry, entityKey, regExp, "Tags", tags);
 		}
-		if (tags != null)
-			qry += constructTagAttributesQuery(regExp, "Tags", tags);
 		if (attributes != null) {
-			if (tags != null)
-				qry += " INTERSECT ";
-			qry += constructTagAttributesQuery(regExp, "Attributes", attributes);
+			qry.append(tags != null ? " AND " : " WHERE ");
+			constructTagAttributesQuery(qry, entityKey, regExp, "Attributes",
+					attributes);
 		}
 		if (!isEmpty(columns) || !isEmpty(doubleColumns)) {
-			if (tags != null || attributes != null)
-				qry += " INTERSECT SELECT " + keys[0] + " FROM " + table
-						+ " WHERE ";
-			else
-				qry += " WHERE ";
-			qry += constructTableQuery(regExp, columns, values, doubleColumns,
-					doubleValues, range);
+			qry.append(tags != null || attributes != null ? " AND " : " WHERE ");
+			constructTableQuery(qry, regExp, columns, values, doubleColumns,
+					doubleValues);
 		}
-		qry += closer;
-		return qry;
+		return qry.toString();
 	}
 
 	/**
-	 * Constructs a select query.
+	 * Constructs the condition of a keyset page, which selects the rows whose
+	 * keys come after the keys of the last row of the previous page.
+	 * 
+	 * @param qry
+	 *            the query that the condition is appended to
+	 * @param keys
+	 *            the names of the key columns of the table
+	 */
+	private void constructKeysetQuery(StringBuilder qry, String[] keys) {
+		qry.append("(").append(keys[0]);
+		for (int i = 1; i < keys.length; i++)
+			qry.append(", ").append(keys[i]);
+		qry.append(") > (?::").append(typeMap.get(keys[0].toLowerCase()));
+		for (int i = 1; i < keys.length; i++)
+			qry.append(", ?::").append(typeMap.get(keys[i].toLowerCase()));
+		qry.append(")");
+	}
+
+	/**
+	 * Constructs a key that identifies the shape of a search. Searches with
+	 * the same shape generate the same query and differ only in the values
+	 * bound to it. Value counts are only part of the shape when regular
+	 * expressions are on or a column has no array form, since otherwise
+	 * values are bound as arrays. Null
+	 * tag and attribute criteria are marked separately from empty ones because
+	 * they generate different queries.
 	 * 
-	 * @param keyIndexes
-	 *            a list of the database key indexes
 	 * @param table
 	 *            the name of the database table
+	 * @param regExp
+	 *            on if regular expressions are allowed, off if otherwise
+	 * @param tags
+	 *            the tag search criteria
+	 * @param attributes
+	 *            the attribute search criteria
+	 * @param columns
+	 *            the names of the non-double database columns
+	 * @param values
+	 *            the values of the non-double database columns
+	 * @param doubleColumns
+	 *            the names of the double database columns
+	 * @param doubleValues
+	 *            the values of the double database columns
+	 * @param limited
+	 *            true if the query has a limit
+	 * @return a string that identifies the query shape
+	 */
+	private String constructQueryShape(String table, String regExp,
+			String[][] tags, String[][] attributes, String[] columns,
+			String[][] values, String[] doubleColumns, Double[][] doubleValues,
+			boolean limited) {
+		boolean regExpOn = regExp != null && regExp.equalsIgnoreCase("on");
+		StringBuilder shape = new StringBuilder(table.toLowerCase());
+		shape.append('|').append(regExpOn);
+		shape.append('|').append(limited).append("|t");
+		if (tags == null)
+			shape.append("null");
+		else
+			for (int i = 0; i < tags.length; i++)
+				shape.append(regExpOn ? tags[i].length : 1).append(',');
+		shape.append("|a");
+		if (attributes == null)
+			shape.append("null");
+		else
+			for (int i = 0; i < attributes.length; i++)
+				shape.append(regExpOn ? attributes[i].length : 1).append(',');
+		shape.append("|c");
+		if (!isEmpty(columns))
+			for (int i = 0; i < columns.length; i++) {
+				boolean counted = regExpOn
+						|| lookupArrayCast(columns[i]) == null;
+				shape.append(columns[i]).append(':')
+						.append(counted ? values[i].length : 1).append(',');
+			}
+		shape.append("|d");
+		if (!isEmpty(doubleColumns))
+			for (int i = 0; i < doubleColumns.length; i++)
+				shape.append(doubleColumns[i]).append(':')
+						.append(doubleValues[i].length).append(',');
+		return shape.toString();
+	}
+
+	/**
+	 * Constructs a string that identifies the key values of a row. UUID values
+	 * are normalized so that keys given by the caller match keys returned by
+	 * the database.
+	 * 
+	 * @param keyIndexes
+	 *            a list of the database key indexes
 	 * @param columns
 	 *            the names of the database columns
-	 * @return a query string
+	 * @param values
+	 *            the values of the database columns
+	 * @return a string that contains the key values
 	 */
-	private String constructSelectQuery(ArrayList<Integer> keyIndexes,
-			String table, String[] columns) {
-		String[] keyColumns = addByIndex(keyIndexes, columns);
-		String qry = "SELECT * FROM " + table + " WHERE " + keyColumns[0]
-				+ " = ?";
-		for (int i = 1; i < keyColumns.length; i++) {
-			qry += " AND " + keyColumns[i] + " = ?";
+	private String constructKeyString(ArrayList<Integer> keyIndexes,
+			String[] columns, String[] values) {
+		StringBuilder keyString = new StringBuilder();
+		for (int i = 0; i < keyIndexes.size(); i++) {
+			String column = columns[keyIndexes.get(i)];
+			String value = values[keyIndexes.get(i)];
+			if (i > 0)
+				keyString.append(',');
+			if (typeMap.get(column.toLowerCase()).equalsIgnoreCase("uuid"))
+				keyString.append(UUID.fromString(value).toString());
+			else
+				keyString.append(value);
 		}
+		return keyString.toString();
+	}
+
+	/**
+	 * Constructs a query that finds which of a set of keys exist. A single key
+	 * column is compared to an array parameter. Composite keys are compared to
+	 * the rows of an unnested array parameter per key column.
+	 * 
+	 * @param table
+	 *            the name of the database table
+	 * @param keyColumns
+	 *            the names of the key columns
+	 * @return a query string
+	 */
+	private String constructKeysExistQuery(String table, String[] keyColumns) {
+		String qry = "SELECT " + keyColumns[0];
+		for (int i = 1; i < keyColumns.length; i++)
+			qry += ", " + keyColumns[i];
+		qry += " FROM " + table + " WHERE ";
+		if (keyColumns.length == 1)
+			return qry + keyColumns[0] + " = ANY(?::"
+					+ typeMap.get(keyColumns[0].toLowerCase()) + "[])";
+		qry += "(" + keyColumns[0];
+		for (int i = 1; i < keyColumns.length; i++)
+			qry += ", " + keyColumns[i];
+		qry += ") IN (SELECT * FROM UNNEST(?::"
+				+ typeMap.get(keyColumns[0].toLowerCase()) + "[]";
+		for (int i = 1; i < keyColumns.length; i++)
+			qry += ", ?::" + typeMap.get(keyColumns[i].toLowerCase()) + "[]";
+		qry += "))";
 		return qry;
 	}
 
 	/**
 	 * Constructs a query associated with a table in the database.
 	 * 
+	 * @param qry
+	 *            the query the table conditions are appended to
 	 * @param regExp
 	 *            on if regular expressions are allowed, off if otherwise
 	 * @param columns
@@ -714,67 +1537,70 @@ public class ManageDB {
 	 *            the names of the double database columns
 	 * @param doubleValues
 	 *            the values of the double database columns
-	 * @param range
-	 *            the range to search by double database columns
-	 * @return a query string
 	 */
-	private String constructTableQuery(String regExp, String[] columns,
-			String[][] values, String[] doubleColumns, Double[][] doubleValues,
-			double[][] range) {
-		String query;
+	private void constructTableQuery(StringBuilder qry, String regExp,
+			String[] columns, String[][] values, String[] doubleColumns,
+			Double[][] doubleValues) {
 		if (!isEmpty(columns) && isEmpty(doubleColumns))
-			query = constructNonDoubleQuery(regExp, columns, values);
+			constructNonDoubleQuery(qry, regExp, columns, values);
 		else if (isEmpty(columns) && !isEmpty(doubleColumns))
-			query = constructDoubleQuery(doubleColumns, doubleValues, range);
-		else
-			query = constructNonDoubleQuery(regExp, columns, values) + " AND ("
-					+ constructDoubleQuery(doubleColumns, doubleValues, range)
-					+ " )";
-		return query;
+			constructDoubleQuery(qry, doubleColumns, doubleValues);
+		else {
+			constructNonDoubleQuery(qry, regExp, columns, values);
+			qry.append(" AND (");
+			constructDoubleQuery(qry, doubleColumns, doubleValues);
+			qry.append(" )");
+		}
 	}
 
 	/**
-	 * Constructs a query associated with tags and attributes.
+	 * Constructs a query associated with tags and attributes. Each group of
+	 * values is an EXISTS semi-join on the entity key, so the search can use
+	 * the expression and entity indexes of the tags and attributes tables.
+	 * Without regular expressions the values of a group are bound as a single
+	 * array.
 	 * 
+	 * @param qry
+	 *            the query the tag or attribute conditions are appended to
+	 * @param entityKey
+	 *            the qualified key column the tags or attributes refer to
 	 * @param regExp
 	 *            on if regular expressions are allowed, off if otherwise
 	 * @param qualification
 	 *            the type of qualification, tag or attribute
 	 * @param values
 	 *            the values used in the query
-	 * @return a query string
 	 */
-	private String constructTagAttributesQuery(String regExp,
-			String qualification, String[][] values) {
-		String selectqry = "";
-		String columnName = "";
+	private void constructTagAttributesQuery(StringBuilder qry,
+			String entityKey, String regExp, String qualification,
+			String[][] values) {
+		String selectqry;
+		String columnName;
 		if (qualification.equalsIgnoreCase("Tags")) {
-			selectqry = " SELECT TAG_ENTITY_UUID FROM TAGS"
-					+ " WHERE UPPER(TAG_NAME)";
+			selectqry = "EXISTS (SELECT 1 FROM TAGS WHERE TAG_ENTITY_UUID = "
+					+ entityKey + " AND (UPPER(TAG_NAME)";
 			columnName = "UPPER(TAG_NAME)";
 		} else {
-			selectqry = " SELECT ATTRIBUTE_ORGANIZATIONAL_UUID"
-					+ " FROM attributes WHERE UPPER(ATTRIBUTE_VALUE)";
+			selectqry = "EXISTS (SELECT 1 FROM ATTRIBUTES"
+					+ " WHERE ATTRIBUTE_ORGANIZATIONAL_UUID = " + entityKey
+					+ " AND (UPPER(ATTRIBUTE_VALUE)";
 			columnName = "UPPER(ATTRIBUTE_VALUE)";
 		}
-		String qry = selectqry;
 		int groups = values.length;
 		for (int i = 0; i < groups; i++) {
 			int numValues = values[i].length;
+			qry.append(selectqry);
 			if (regExp.equalsIgnoreCase("on")) {
-				qry += " ~* ?";
+				qry.append(" ~* ?");
 				for (int j = 1; j < numValues; j++)
-					qry += " OR " + columnName + " ~* ?";
+					qry.append(" OR ").append(columnName).append(" ~* ?");
 			} else {
-				qry += " IN (?";
-				for (int j = 1; j < numValues; j++)
-					qry += ",?";
-				qry += ")";
+				qry.append(" = ANY(?::text[])");
 			}
+			qry.append("))");
 			if (i != groups - 1)
-				qry += " INTERSECT " + selectqry;
+				qry.append(" AND ");
 		}
-		return qry;
 	}
 
 	/**
@@ -801,6 +1627,326 @@ public class ManageDB {
 		return qry;
 	}
 
+	/**
+	 * Constructs a upsert query. Rows whose primary key already exists update
+	 * the non-key columns, except the dataset session UUID which keeps its
+	 * existing value.
+	 * 
+	 * @param keyIndexes
+	 *            a list of the key indexes
+	 * @param table
+	 *            the name of the database table
+	 * @param columns
+	 *            the names of the database columns
+	 * @return a upsert query string
+	 */
+	private String constructUpsertQuery(ArrayList<Integer> keyIndexes,
+			String table, String[] columns) {
+		String[] keyColumns = addByIndex(keyIndexes, columns);
+		String[] nonKeyColumns = removeByIndex(keyIndexes, columns);
+		String qry = constructInsertQuery(table, columns);
+		qry += " ON CONFLICT (" + keyColumns[0];
+		for (int i = 1; i < keyColumns.length; i++)
+			qry += ", " + keyColumns[i];
+		qry += ")";
+		String setClause = "";
+		for (int i = 0; i < nonKeyColumns.length; i++) {
+			if (nonKeyColumns[i].equalsIgnoreCase("dataset_session_uuid"))
+				continue;
+			if (setClause.length() > 0)
+				setClause += ", ";
+			setClause += nonKeyColumns[i] + " = EXCLUDED." + nonKeyColumns[i];
+		}
+		if (setClause.length() > 0)
+			qry += " DO UPDATE SET " + setClause;
+		else
+			qry += " DO NOTHING";
+		return qry;
+	}
+
+	/**
+	 * Inserts rows into the database with a binary COPY. The rows are encoded
+	 * from the column types before anything is sent, so rows that cannot be
+	 * encoded leave the database untouched.
+	 * 
+	 * @param table
+	 *            the name of the database table
+	 * @param columns
+	 *            the names of the database columns
+	 * @param rows
+	 *            the values of the non-double database columns of each row
+	 * @param doubleRows
+	 *            the values of the double database columns of each row
+	 * @return true if the rows were copied, false if they could not be encoded
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	private boolean copyRows(String table, String[] columns,
+			ArrayList<String[]> rows, ArrayList<Double[]> doubleRows)
+			throws MobbedException {
+		QueryEvent event = new QueryEvent();
+		int numColumns = columns.length;
+		String[] types = new String[numColumns];
+		for (int k = 0; k < numColumns; k++) {
+			types[k] = typeMap.get(columns[k].toLowerCase());
+			// only double precision arrays are encoded
+			if (types[k].equalsIgnoreCase("ARRAY")
+					&& !"float8".equals(elementTypes.get(columns[k]
+							.toLowerCase())))
+				return false;
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(bytes);
+		try {
+			/********* HEADER # BEGIN::11+4+4 byte **********/
+			dos.writeBytes("PGCOPY\n\377\r\n\0");
+			dos.writeInt(0);
+			dos.writeInt(0);
+			/********* HEADER # END::11+4+4 byte **********/
+			for (int r = 0; r < rows.size(); r++) {
+				String[] values = rows.get(r);
+				Double[] doubleValues = doubleRows.get(r);
+				dos.writeShort(numColumns);
+				int i = 0;
+				int j = 0;
+				for (int k = 0; k < numColumns; k++) {
+					if (!isEmpty(doubleValues)
+							&& types[k].equalsIgnoreCase("double precision")) {
+						if (doubleValues[i] == null)
+							dos.writeInt(-1);
+						else {
+							dos.writeInt(8);
+							dos.writeDouble(doubleValues[i]);
+						}
+						i++;
+					} else {
+						if (!encodeCopyValue(dos, types[k], values[j]))
+							return false;
+						j++;
+					}
+				}
+			}
+			dos.writeShort(-1);
+			dos.close();
+		} catch (IOException ex) {
+			return false;
+		}
+		String copyQry = "COPY " + table + " (" + columns[0];
+		for (int k = 1; k < numColumns; k++)
+			copyQry += ", " + columns[k];
+		copyQry += ") FROM STDIN WITH BINARY";
+		try {
+			event.prepared(copyQry, rows.size());
+			CopyManager copyMgr = ((org.postgresql.PGConnection) connection)
+					.getCopyAPI();
+			if (verbose)
+				System.out.println(copyQry + " (" + rows.size() + " rows)");
+			long copied = copyMgr.copyIn(copyQry, new ByteArrayInputStream(
+					bytes.toByteArray()));
+			event.executed();
+			event.fetched(copied);
+			fireQueryEvent(event);
+		} catch (Exception ex) {
+			throw new MobbedException("Could not copy row(s) into the database\n"
+					+ ex.getMessage());
+		}
+		return true;
+	}
+
+	/**
+	 * Counts the rows affected by a batch.
+	 * 
+	 * @param counts
+	 *            the update counts of the statements in the batch
+	 * @return the number of rows affected, counting a statement without a
+	 *         known count as one row
+	 */
+	private long countUpdates(int[] counts) {
+		long rows = 0;
+		for (int count : counts)
+			rows += count == Statement.SUCCESS_NO_INFO ? 1 : Math.max(count, 0);
+		return rows;
+	}
+
+	/**
+	 * Counts the days from 1970-01-01 to a date of the proleptic Gregorian
+	 * calendar. A month of 13 is the January of the next year.
+	 * 
+	 * @param year
+	 *            the year of the date
+	 * @param month
+	 *            the month of the date, starting at 1
+	 * @param day
+	 *            the day of the month
+	 * @return the days since 1970-01-01
+	 */
+	private static long daysFromCivil(long year, long month, long day) {
+		if (month > 12) {
+			year++;
+			month -= 12;
+		}
+		if (month <= 2)
+			year--;
+		long era = (year >= 0 ? year : year - 399) / 400;
+		long yearOfEra = year - era * 400;
+		long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5
+				+ day - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+				+ dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	/**
+	 * Encodes a value of a database column in the binary COPY format.
+	 * 
+	 * @param dos
+	 *            the stream the value is written to
+	 * @param type
+	 *            the type of the database column
+	 * @param value
+	 *            the value of the database column
+	 * @return true if the value was encoded, false if the type or value is not
+	 *         supported
+	 * @throws IOException
+	 *             if an error occurs
+	 */
+	private boolean encodeCopyValue(DataOutputStream dos, String type,
+			String value) throws IOException {
+		if (value == null) {
+			dos.writeInt(-1);
+			return true;
+		}
+		try {
+			if (type.equalsIgnoreCase("uuid")) {
+				UUID uuid = UUID.fromString(value);
+				dos.writeInt(16);
+				dos.writeLong(uuid.getMostSignificantBits());
+				dos.writeLong(uuid.getLeastSignificantBits());
+			} else if (type.equalsIgnoreCase("character varying")) {
+				byte[] text = value.getBytes("UTF-8");
+				dos.writeInt(text.length);
+				dos.write(text);
+			} else if (type.equalsIgnoreCase("integer")) {
+				int number = Integer.parseInt(value);
+				dos.writeInt(4);
+				dos.writeInt(number);
+			} else if (type.equalsIgnoreCase("oid")) {
+				long number = Long.parseLong(value);
+				dos.writeInt(4);
+				dos.writeInt((int) number);
+			} else if (type.equalsIgnoreCase("bigint")) {
+				long number = Long.parseLong(value);
+				dos.writeInt(8);
+				dos.writeLong(number);
+			} else if (type.equalsIgnoreCase("double precision")) {
+				double number = Double.parseDouble(value);
+				dos.writeInt(8);
+				dos.writeDouble(number);
+			} else if (type.equalsIgnoreCase("timestamp without time zone")) {
+				Matcher matcher = timestampPattern.matcher(value.trim());
+				if (!matcher.matches())
+					return false;
+				int year = Integer.parseInt(matcher.group(1));
+				int month = Integer.parseInt(matcher.group(2));
+				int day = Integer.parseInt(matcher.group(3));
+				int hour = Integer.parseInt(matcher.group(4));
+				int minute = Integer.parseInt(matcher.group(5));
+				int second = Integer.parseInt(matcher.group(6));
+				long days = daysFromCivil(year, month, day);
+				if (month < 1 || month > 12 || day < 1
+						|| days >= daysFromCivil(year, month + 1, 1)
+						|| hour > 23 || minute > 59 || second > 59)
+					return false;
+				String fraction = matcher.group(7) == null ? "" : matcher
+						.group(7);
+				long nanos = Long.parseLong((fraction + "000000000")
+						.substring(0, 9));
+				dos.writeInt(8);
+				dos.writeLong(((days - POSTGRES_EPOCH_DAYS) * 86400 + hour
+						* 3600 + minute * 60 + second)
+						* 1000000 + (long) Math.rint(nanos / 1000.0));
+			} else if (type.equalsIgnoreCase("ARRAY")) {
+				String trimmed = value.trim();
+				if (!trimmed.startsWith("{") || !trimmed.endsWith("}"))
+					return false;
+				trimmed = trimmed.substring(1, trimmed.length() - 1).trim();
+				String[] elements = trimmed.length() == 0 ? new String[0]
+						: trimmed.split(",");
+				double[] numbers = new double[elements.length];
+				for (int i = 0; i < elements.length; i++)
+					numbers[i] = Double.parseDouble(elements[i].trim());
+				// copyRows only encodes double precision arrays
+				if (numbers.length == 0) {
+					dos.writeInt(12);
+					dos.writeInt(0);
+					dos.writeInt(0);
+					dos.writeInt(701);
+				} else {
+					dos.writeInt(20 + 12 * numbers.length);
+					dos.writeInt(1); // dimension
+					dos.writeInt(0); // flag
+					dos.writeInt(701); // element_type
+					dos.writeInt(numbers.length);
+					dos.writeInt(1); // lower bound
+					for (int i = 0; i < numbers.length; i++) {
+						dos.writeInt(8);
+						dos.writeDouble(numbers[i]);
+					}
+				}
+			} else
+				return false;
+		} catch (IllegalArgumentException ex) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Waits for a page fetched ahead to finish.
+	 * 
+	 * @param pending
+	 *            the page fetched ahead
+	 * @return the rows of the page
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	private String[][] awaitPrefetch(CursorPrefetch pending)
+			throws MobbedException {
+		try {
+			return pending.rows.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new MobbedException(
+					"Interrupted while fetching the next set of rows");
+		} catch (ExecutionException ex) {
+			throw new MobbedException(
+					"Could not fetch the next set of rows in the background\n"
+							+ ex.getCause().toString());
+		}
+	}
+
+	/**
+	 * Waits for all pages fetched ahead and discards them. Data cursors that
+	 * were exhausted by a page fetched ahead are already closed.
+	 * 
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	private void cancelPrefetches() throws MobbedException {
+		ArrayList<CursorPrefetch> pending;
+		synchronized (prefetches) {
+			pending = new ArrayList<CursorPrefetch>(prefetches.values());
+			prefetches.clear();
+		}
+		for (CursorPrefetch p : pending) {
+			try {
+				p.rows.get();
+			} catch (Exception ex) {
+				// the page is discarded either way
+			}
+		}
+	}
+
 	/**
 	 * Creates a data cursor
 	 * 
@@ -816,8 +1962,7 @@ public class ManageDB {
 		String cursorQuery = "DECLARE " + name
 				+ " SCROLL CURSOR WITH HOLD FOR " + query;
 		try {
-			Statement stmt = connection.createStatement();
-			stmt.execute(cursorQuery);
+			executeCursorStatement(cursorQuery);
 			if (verbose)
 				System.out.println(cursorQuery);
 		} catch (SQLException ex) {
@@ -838,19 +1983,50 @@ public class ManageDB {
 	private boolean dataCursorExists(String name) throws MobbedException {
 		String query = "SELECT EXISTS (SELECT 1 FROM PG_CURSORS WHERE NAME = ?)";
 		boolean cursorExists;
+		PreparedStatement pstmt = null;
 		try {
-			PreparedStatement pstmt = connection.prepareStatement(query);
+			QueryEvent event = new QueryEvent();
+			pstmt = statementCache.prepare(query);
 			pstmt.setString(1, name);
+			event.prepared(query, 1);
 			ResultSet rs = pstmt.executeQuery();
+			event.executed();
 			rs.next();
 			cursorExists = rs.getBoolean(1);
+			rs.close();
+			event.fetched(1);
+			fireQueryEvent(event);
 		} catch (SQLException ex) {
 			throw new MobbedException("Could not check if data cursor exists\n"
 					+ ex.getMessage());
+		} finally {
+			statementCache.release(pstmt);
 		}
 		return cursorExists;
 	}
 
+	/**
+	 * Executes a statement that declares, moves or closes a data cursor and
+	 * reports it to the listeners.
+	 * 
+	 * @param query
+	 *            the cursor statement
+	 * @throws SQLException
+	 *             if an error occurs
+	 */
+	private void executeCursorStatement(String query) throws SQLException {
+		QueryEvent event = new QueryEvent();
+		Statement stmt = connection.createStatement();
+		try {
+			event.prepared(query, 1);
+			stmt.execute(query);
+			event.executed();
+			fireQueryEvent(event);
+		} finally {
+			closeStatement(stmt);
+		}
+	}
+
 	/**
 	 * Finds the index of a particular column.
 	 * 
@@ -899,6 +2075,104 @@ public class ManageDB {
 		return keyIndexes;
 	}
 
+	/**
+	 * Finds which of the keys given in a set of rows exist in the database.
+	 * The keys of all rows are looked up with a single query.
+	 * 
+	 * @param keyIndexes
+	 *            a list of key indexes
+	 * @param table
+	 *            the name of the database table
+	 * @param columns
+	 *            the names of the database columns
+	 * @param values
+	 *            the values of the database columns for each row
+	 * @return the key strings of the rows whose keys exist in the database
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	private HashSet<String> findExistingKeys(ArrayList<Integer> keyIndexes,
+			String table, String[] columns, String[][] values)
+			throws MobbedException {
+		HashSet<String> existingKeys = new HashSet<String>();
+		if (keyIndexes.isEmpty())
+			return existingKeys;
+		int numKeys = keyIndexes.size();
+		ArrayList<String[]> keyRows = new ArrayList<String[]>();
+		for (int i = 0; i < values.length; i++) {
+			if (!keysEmpty(keyIndexes, values[i]))
+				keyRows.add(addByIndex(keyIndexes, values[i]));
+		}
+		if (keyRows.isEmpty())
+			return existingKeys;
+		String[] keyColumns = addByIndex(keyIndexes, columns);
+		String query = constructKeysExistQuery(table, keyColumns);
+		ArrayList<Integer> allIndexes = new ArrayList<Integer>();
+		for (int i = 0; i < numKeys; i++)
+			allIndexes.add(i);
+		PreparedStatement pstmt = null;
+		try {
+			QueryEvent event = new QueryEvent();
+			pstmt = statementCache.prepare(query);
+			for (int i = 0; i < numKeys; i++) {
+				String[] keyValues = new String[keyRows.size()];
+				for (int j = 0; j < keyValues.length; j++)
+					keyValues[j] = keyRows.get(j)[i];
+				pstmt.setArray(i + 1,
+						connection.createArrayOf("varchar", keyValues));
+			}
+			event.prepared(query, 1);
+			if (verbose)
+				System.out.println(pstmt);
+			ResultSet rs = pstmt.executeQuery();
+			event.executed();
+			String[] row = new String[numKeys];
+			while (rs.next()) {
+				for (int i = 0; i < numKeys; i++)
+					row[i] = rs.getString(i + 1);
+				existingKeys.add(constructKeyString(allIndexes, keyColumns,
+						row));
+			}
+			rs.close();
+			event.fetched(existingKeys.size());
+			fireQueryEvent(event);
+		} catch (SQLException ex) {
+			throw new MobbedException(
+					"Could not execute query to find if keys exist\n"
+							+ ex.getMessage());
+		} finally {
+			statementCache.release(pstmt);
+		}
+		return existingKeys;
+	}
+
+	/**
+	 * Sends an event to the listeners of this object.
+	 * 
+	 * @param event
+	 *            the event of an executed statement
+	 */
+	private void fireQueryEvent(QueryEvent event) {
+		for (QueryListener listener : listeners)
+			listener.queryExecuted(event);
+	}
+
+	/**
+	 * Writes the samples buffered by the NumericStreams objects on the
+	 * connection.
+	 * 
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	private void flushStreams() throws MobbedException {
+		NumericStreams[] buffered;
+		synchronized (streams) {
+			buffered = streams.toArray(new NumericStreams[streams.size()]);
+		}
+		for (NumericStreams ns : buffered)
+			ns.flush();
+	}
+
 	/**
 	 * Generates the keys for insertion.
 	 * 
@@ -929,102 +2203,30 @@ public class ManageDB {
 		return values;
 	}
 
-	/**
-	 * Initializes the hashmaps that contain column metadata.
-	 * 
-	 * @param columnStatement
-	 *            the prepared statement object used for the queries
-	 * @param table
-	 *            the name of the database table
-	 * @throws MobbedException
-	 *             if an error occurs
-	 */
-	private void initializeColumnHashMaps(PreparedStatement columnStatement,
-			String table) throws MobbedException {
-		ArrayList<String> columnNameList = new ArrayList<String>();
-		String columnDefault = null;
-		String columnName = null;
-		String columnType = null;
-		try {
-			columnStatement.setString(1, table);
-			ResultSet rs = columnStatement.executeQuery();
-			while (rs.next()) {
-				columnDefault = rs.getString(1);
-				if (columnDefault != null)
-					columnDefault = columnDefault.split(":")[0].replaceAll("'",
-							"");
-				columnName = rs.getString(2);
-				columnType = rs.getString(3);
-				defaultValues.put(columnName, columnDefault);
-				typeMap.put(columnName, columnType);
-				columnNameList.add(columnName);
-			}
-		} catch (SQLException ex) {
-			throw new MobbedException("Could not retrieve the columns\n"
-					+ ex.getMessage());
-		}
-		String[] columnNames = columnNameList.toArray(new String[columnNameList
-				.size()]);
-		columnMap.put(table, columnNames);
-	}
-
 	/**
 	 * Initializes the hashmaps. The hashmaps contain metadata about columns and
-	 * the keys from each table.
+	 * the keys from each table. They are taken from the schema snapshot shared
+	 * by all ManageDB objects connected to the same database.
 	 * 
 	 * @throws MobbedException
 	 *             if an error occurs
 	 */
 	private void initializeHashMaps() throws MobbedException {
-		columnMap = new HashMap<String, String[]>();
-		typeMap = new HashMap<String, String>();
-		defaultValues = new HashMap<String, String>();
-		keyMap = new HashMap<String, String[]>();
-		ResultSet rs = null;
-		PreparedStatement columnStatement = null;
-		PreparedStatement keyStatement = null;
-		try {
-			Statement tableStatement = connection.createStatement();
-			columnStatement = connection.prepareCall(columnQuery);
-			keyStatement = connection.prepareCall(keyQuery);
-			rs = tableStatement.executeQuery(tableQuery);
-			while (rs.next()) {
-				initializeColumnHashMaps(columnStatement,
-						rs.getString("table_name"));
-				initializeKeyHashMap(keyStatement, rs.getString("table_name"));
-			}
-		} catch (SQLException ex) {
-			throw new MobbedException(
-					"Could not initialize statement objects\n"
-							+ ex.getMessage());
-		}
+		setSchema(SchemaSnapshot.get(connection));
 	}
 
 	/**
-	 * Initializes a hashmap that contains the keys of each table.
+	 * Sets the hashmaps from a schema snapshot.
 	 * 
-	 * @param keyStatement
-	 *            the prepared statement object used for the queries
-	 * @param table
-	 *            the name of the database table
-	 * @throws MobbedException
-	 *             if an error occurs
+	 * @param schema
+	 *            the schema snapshot of the database
 	 */
-	private void initializeKeyHashMap(PreparedStatement keyStatement,
-			String table) throws MobbedException {
-		ArrayList<String> keyColumnList = new ArrayList<String>();
-		try {
-			keyStatement.setString(1, table);
-			ResultSet rs = keyStatement.executeQuery();
-			while (rs.next())
-				keyColumnList.add(rs.getString(1));
-		} catch (SQLException ex) {
-			throw new MobbedException("Could not initialize key hashmap\n"
-					+ ex.getMessage());
-		}
-		String[] keyColumns = keyColumnList.toArray(new String[keyColumnList
-				.size()]);
-		keyMap.put(table, keyColumns);
+	private void setSchema(SchemaSnapshot schema) {
+		columnMap = schema.getColumnMap();
+		typeMap = schema.getTypeMap();
+		defaultValues = schema.getDefaultValues();
+		elementTypes = schema.getElementTypes();
+		keyMap = schema.getKeyMap();
 	}
 
 	/**
@@ -1055,42 +2257,22 @@ public class ManageDB {
 	}
 
 	/**
-	 * Checks if the given keys exist in the database.
+	 * Looks up the type a column's values are cast to when they are bound as
+	 * a single array. The schema reports array and user-defined columns as
+	 * ARRAY and USER-DEFINED, which are not type names, so those columns have
+	 * no array form.
 	 * 
-	 * @param keyIndexes
-	 *            a list of key indexes
-	 * @param table
-	 *            the name of the database table
-	 * @param columns
-	 *            the names of the database columns
-	 * @param values
-	 *            the values of the database columns
-	 * @return true if the keys exist in the database, false if otherwise
-	 * @throws MobbedException
-	 *             if an error occurs
+	 * @param column
+	 *            the name of the database column
+	 * @return the sql type name of the column, or null if its values cannot
+	 *         be bound as an array
 	 */
-	private boolean keysExist(ArrayList<Integer> keyIndexes, String table,
-			String[] columns, String[] values) throws MobbedException {
-		boolean exist = false;
-		if (!keysEmpty(keyIndexes, values)) {
-			String[] keyColumns = addByIndex(keyIndexes, columns);
-			String[] keyValues = addByIndex(keyIndexes, values);
-			String selectQuery = constructSelectQuery(keyIndexes, table,
-					columns);
-			try {
-				PreparedStatement pstmt = connection
-						.prepareStatement(selectQuery);
-				setSelectStatementValues(pstmt, keyColumns, keyValues);
-				ResultSet rs = pstmt.executeQuery();
-				if (rs.next())
-					exist = true;
-			} catch (SQLException ex) {
-				throw new MobbedException(
-						"Could not execute query to find if keys exist\n"
-								+ ex.getMessage());
-			}
-		}
-		return exist;
+	private String lookupArrayCast(String column) {
+		String type = typeMap.get(column);
+		if (type == null || type.equalsIgnoreCase("ARRAY")
+				|| type.equalsIgnoreCase("USER-DEFINED"))
+			return null;
+		return type;
 	}
 
 	/**
@@ -1131,31 +2313,248 @@ public class ManageDB {
 	 *            the name of the data cursor
 	 * @param fetchSize
 	 *            the fetch size of the data cursor
+	 * @param background
+	 *            true if the rows are fetched ahead in the background, which
+	 *            uses its own statement instead of the statement cache
 	 * @return a set of rows that the data cursor fetches
 	 * @throws MobbedException
 	 */
-	private String[][] next(String name, int fetchSize) throws MobbedException {
+	private String[][] next(String name, int fetchSize, boolean background)
+			throws MobbedException {
 		String[][] rows = null;
 		String query = "FETCH FORWARD " + fetchSize + " FROM " + name;
+		PreparedStatement pstmt = null;
 		try {
-			Statement stmt = connection.createStatement(
-					ResultSet.TYPE_SCROLL_INSENSITIVE,
-					ResultSet.CONCUR_READ_ONLY);
-			ResultSet rs = stmt.executeQuery(query);
+			QueryEvent event = new QueryEvent();
+			if (background)
+				pstmt = connection.prepareStatement(query);
+			else
+				pstmt = statementCache.prepare(query);
+			event.prepared(query, 1);
+			ResultSet rs = pstmt.executeQuery();
+			event.executed();
 			rows = populateArray(rs);
+			event.fetched(rows.length);
+			fireQueryEvent(event);
 			if (isEmpty(rows))
-				closeCursor(name);
+				closeDataCursor(name);
 			if (verbose)
 				System.out.println(query);
 		} catch (SQLException ex) {
 			throw new MobbedException("Could not fetch the next set of rows\n"
 					+ ex.getMessage());
+		} finally {
+			if (background)
+				closeStatement(pstmt);
+			else
+				statementCache.release(pstmt);
+		}
+		return rows;
+	}
+
+	/**
+	 * Gets the next page of a data cursor, creating the data cursor if it does
+	 * not exist. A page that was fetched ahead is used if it has the same
+	 * size. When prefetching is on and the data cursor is not exhausted the
+	 * page after it is fetched in the background with its own statement. An
+	 * error of the background fetch is thrown by the next call. A failed fetch
+	 * aborts the current transaction like a failed foreground fetch would.
+	 * 
+	 * @param name
+	 *            the name of the data cursor
+	 * @param query
+	 *            the query the data cursor will be bounded to
+	 * @param fetchSize
+	 *            the number of rows per page
+	 * @return a set of rows that the data cursor fetches
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	private String[][] nextPage(String name, String query, int fetchSize)
+			throws MobbedException {
+		CursorPrefetch pending;
+		synchronized (prefetches) {
+			pending = prefetches.remove(name);
+		}
+		String[][] rows;
+		if (pending != null) {
+			rows = awaitPrefetch(pending);
+			if (isEmpty(rows))
+				return rows;
+			if (pending.fetchSize != fetchSize) {
+				// a short page leaves the cursor after the last row
+				int count = rows.length < pending.fetchSize ? rows.length + 1
+						: rows.length;
+				moveBackward(name, count);
+				rows = next(name, fetchSize, false);
+			}
+		} else {
+			if (!dataCursorExists(name))
+				createDataCursor(name, query);
+			rows = next(name, fetchSize, false);
 		}
+		if (prefetch && !isEmpty(rows))
+			schedulePrefetch(name, fetchSize);
 		return rows;
 	}
 
 	/**
-	 * Populates an array with a result set.
+	 * Moves a data cursor backward so that rows fetched ahead are fetched
+	 * again.
+	 * 
+	 * @param name
+	 *            the name of the data cursor
+	 * @param count
+	 *            the number of rows to move back
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	private void moveBackward(String name, int count) throws MobbedException {
+		String query = "MOVE BACKWARD " + count + " IN " + name;
+		try {
+			executeCursorStatement(query);
+			if (verbose)
+				System.out.println(query);
+		} catch (SQLException ex) {
+			throw new MobbedException("Could not move the data cursor\n"
+					+ ex.getMessage());
+		}
+	}
+
+	/**
+	 * Fetches the next page of a data cursor in the background.
+	 * 
+	 * @param name
+	 *            the name of the data cursor
+	 * @param fetchSize
+	 *            the number of rows per page
+	 */
+	private void schedulePrefetch(final String name, final int fetchSize) {
+		if (prefetchExecutor == null) {
+			prefetchExecutor = Executors
+					.newSingleThreadExecutor(new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "mobbed-cursor-prefetch");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		Future<String[][]> rows = prefetchExecutor
+				.submit(new Callable<String[][]>() {
+					public String[][] call() throws MobbedException {
+						return next(name, fetchSize, true);
+					}
+				});
+		synchronized (prefetches) {
+			prefetches.put(name, new CursorPrefetch(fetchSize, rows));
+		}
+	}
+
+	/**
+	 * Prepares a query that retrieves rows based on search criteria and sets
+	 * its values. The query is memoized by its shape.
+	 * 
+	 * @param select
+	 *            the select list of the query
+	 * @param table
+	 *            the name of the database table
+	 * @param limited
+	 *            true if the query has a limit
+	 * @param limit
+	 *            the maximum number of rows to retrieve
+	 * @param regExp
+	 *            on if regular expressions are allowed, off if otherwise
+	 * @param tags
+	 *            the tags search criteria
+	 * @param attributes
+	 *            the attributes search criteria
+	 * @param columns
+	 *            the names of the non-double database columns
+	 * @param values
+	 *            the values of the non-double database columns
+	 * @param doubleColumns
+	 *            the names of the double database columns
+	 * @param doubleValues
+	 *            the values of the double database columns
+	 * @param range
+	 *            the range to search by double database columns
+	 * @param keyset
+	 *            true if the rows are ordered by the keys of the table
+	 * @param lastKey
+	 *            the key values of the row the keyset page starts after, null
+	 *            to start at the first row
+	 * @param event
+	 *            the event that is marked when the statement is prepared
+	 * @return a prepared statement with all of its values set, checked out from
+	 *         the statement cache
+	 * @throws MobbedException
+	 *             if an error occurs
+	 * @throws SQLException
+	 *             if the statement could not be prepared
+	 */
+	private PreparedStatement prepareRetrieveStatement(String select,
+			String table, boolean limited, double limit, String regExp, String[][] tags,
+			String[][] attributes, String[] columns, String[][] values,
+			String[] doubleColumns, Double[][] doubleValues, double[][] range,
+			boolean keyset, String[] lastKey, QueryEvent event)
+			throws MobbedException, SQLException {
+		table = table.toLowerCase();
+		String[] keys = keyMap.get(table);
+		String shape = constructQueryShape(table, regExp, tags, attributes,
+				columns, values, doubleColumns, doubleValues, limited);
+		shape += "|s" + select;
+		if (keyset)
+			shape += "|k" + (lastKey != null);
+		String qry = queryShapes.get(shape);
+		if (qry == null) {
+			StringBuilder qryBuilder = new StringBuilder("SELECT ")
+					.append(select).append(" FROM ").append(table);
+			String qualification = constructQualificationQuery(table, regExp,
+					tags, attributes, columns, values, doubleColumns,
+					doubleValues);
+			qryBuilder.append(qualification);
+			if (keyset) {
+				if (lastKey != null) {
+					qryBuilder.append(qualification.length() == 0 ? " WHERE "
+							: " AND ");
+					constructKeysetQuery(qryBuilder, keys);
+				}
+				qryBuilder.append(" ORDER BY ").append(keys[0]);
+				for (int i = 1; i < keys.length; i++)
+					qryBuilder.append(", ").append(keys[i]);
+			}
+			if (limited)
+				qryBuilder.append(" LIMIT ?");
+			qry = qryBuilder.toString();
+			queryShapes.put(shape, qry);
+		}
+		PreparedStatement pstmt = statementCache.prepare(qry);
+		boolean bound = false;
+		try {
+			pstmt.setFetchSize(fetchSize);
+			int valueCount = setQaulificationValues(pstmt, regExp, tags,
+					attributes, columns, values, doubleColumns, doubleValues,
+					range);
+			if (keyset && lastKey != null) {
+				for (int i = 0; i < keys.length; i++)
+					pstmt.setString(valueCount++, lastKey[i]);
+			}
+			if (limited)
+				pstmt.setInt(valueCount, (int) limit);
+			bound = true;
+		} finally {
+			if (!bound)
+				statementCache.release(pstmt);
+		}
+		event.prepared(qry, 1);
+		return pstmt;
+	}
+
+	/**
+	 * Populates an array with a result set. The result set is read forward
+	 * only, so the driver can stream it in pages of the fetch size instead of
+	 * buffering every row before the first one is copied.
 	 * 
 	 * @param rs
 	 *            the result set object that contains the rows from the query
@@ -1164,26 +2563,23 @@ public class ManageDB {
 	 *             if an error occurs
 	 */
 	private String[][] populateArray(ResultSet rs) throws MobbedException {
-		String[][] allocatedArray = null;
+		ArrayList<String[]> rows = new ArrayList<String[]>();
 		try {
 			ResultSetMetaData rsMeta = rs.getMetaData();
-			rs.last();
-			int rowCount = rs.getRow();
 			int colCount = rsMeta.getColumnCount();
-			allocatedArray = new String[rowCount][colCount];
-			rs.beforeFirst();
-			int i = 0;
 			while (rs.next()) {
+				String[] row = new String[colCount];
 				for (int j = 0; j < colCount; j++)
-					allocatedArray[i][j] = rs.getString(j + 1);
-				i++;
+					row[j] = rs.getString(j + 1);
+				rows.add(row);
 			}
+			rs.close();
 		} catch (SQLException ex) {
 			throw new MobbedException(
 					"Could not populate the array with the result set\n"
 							+ ex.getMessage());
 		}
-		return allocatedArray;
+		return rows.toArray(new String[rows.size()][]);
 	}
 
 	/**
@@ -1209,8 +2605,9 @@ public class ManageDB {
 	}
 
 	/**
-	 * * Sets the double values of a prepared statement object that retrieves
-	 * rows from a particular table in the database.
+	 * Sets the double values of a prepared statement object that retrieves
+	 * rows from a particular table in the database. Each value is bound as the
+	 * bounds of its range.
 	 * 
 	 * @param pstmt
 	 *            the prepared statement object used to do the query
@@ -1220,20 +2617,26 @@ public class ManageDB {
 	 *            the names of the double database columns
 	 * @param doubleValues
 	 *            the values of the double database columns
-	 * @return
+	 * @param range
+	 *            the range to search by double database columns
+	 * @return the number of values that were set in the query in addition to
+	 *         the ones prior
 	 * @throws MobbedException
+	 *             if an error occurs
 	 */
 	private int setDoubleTableStatementValues(PreparedStatement pstmt,
-			int valueCount, String[] doubleColumns, Double[][] doubleValues)
-			throws MobbedException {
+			int valueCount, String[] doubleColumns, Double[][] doubleValues,
+			double[][] range) throws MobbedException {
 		int numColumns = doubleColumns.length;
 		int numValues;
 		for (int i = 0; i < numColumns; i++) {
 			numValues = doubleValues[i].length;
 			for (int j = 0; j < numValues; j++) {
 				try {
-					pstmt.setDouble(valueCount, doubleValues[i][j]);
-					pstmt.setDouble(valueCount + 1, doubleValues[i][j]);
+					pstmt.setDouble(valueCount, doubleValues[i][j]
+							+ range[i][0]);
+					pstmt.setDouble(valueCount + 1, doubleValues[i][j]
+							+ range[i][1]);
 				} catch (SQLException ex) {
 					throw new MobbedException("Could not set value in query\n"
 							+ ex.getMessage());
@@ -1293,6 +2696,8 @@ public class ManageDB {
 	 *            the prepared statement object used to do the query
 	 * @param valueCount
 	 *            the number of values that have already been set
+	 * @param regExp
+	 *            on if regular expressions are allowed, off if otherwise
 	 * @param columns
 	 *            the names of the non-double database columns
 	 * @param values
@@ -1302,27 +2707,36 @@ public class ManageDB {
 	 * @throws MobbedException
 	 *             if an error occurs
 	 */
-
 	private int setNonDoubleTableStatementValues(PreparedStatement pstmt,
-			int valueCount, String[] columns, String[][] values)
+			int valueCount, String regExp, String[] columns, String[][] values)
 			throws MobbedException {
 		int numColumns = columns.length;
 		int numValues = 0;
 		int targetType = 0;
 		for (int i = 0; i < numColumns; i++) {
 			numValues = values[i].length;
-			for (int j = 0; j < numValues; j++) {
-				targetType = lookupTargetType(columns[i]);
-				// Case insensitive fix
-				if (targetType == Types.VARCHAR)
+			targetType = lookupTargetType(columns[i]);
+			// Case insensitive fix
+			if (targetType == Types.VARCHAR)
+				for (int j = 0; j < numValues; j++)
 					values[i][j] = values[i][j].toUpperCase();
-				try {
-					pstmt.setObject(valueCount, values[i][j], targetType);
-				} catch (SQLException ex) {
-					throw new MobbedException("Could not set value in query\n"
-							+ ex.getMessage());
+			try {
+				if (targetType == Types.VARCHAR
+						&& regExp.equalsIgnoreCase("on")) {
+					for (int j = 0; j < numValues; j++)
+						pstmt.setObject(valueCount++, values[i][j], targetType);
+				} else if (targetType == Types.VARCHAR
+						|| lookupArrayCast(columns[i]) != null) {
+					pstmt.setArray(valueCount++,
+							connection.createArrayOf("varchar", values[i]));
+				} else {
+					// Let the server parse each value as the column type
+					for (int j = 0; j < numValues; j++)
+						pstmt.setObject(valueCount++, values[i][j], Types.OTHER);
 				}
-				valueCount++;
+			} catch (SQLException ex) {
+				throw new MobbedException("Could not set value in query\n"
+						+ ex.getMessage());
 			}
 		}
 		return valueCount;
@@ -1334,8 +2748,8 @@ public class ManageDB {
 	 * 
 	 * @param pstmt
 	 *            the prepared statement object used to do the query
-	 * @param qry
-	 *            the query that will be executed
+	 * @param regExp
+	 *            on if regular expressions are allowed, off if otherwise
 	 * @param tags
 	 *            the values of the tags search criteria
 	 * @param attributes
@@ -1348,52 +2762,30 @@ public class ManageDB {
 	 *            the names of the double database columns
 	 * @param doubleValues
 	 *            the values of the double database columns
+	 * @param range
+	 *            the range to search by double database columns
+	 * @return the index of the next value to be set
 	 * @throws MobbedException
 	 *             if an error occurs
 	 */
-	private void setQaulificationValues(PreparedStatement pstmt, String qry,
-			String[][] tags, String[][] attributes, String[] columns,
-			String[][] values, String[] doubleColumns, Double[][] doubleValues)
-			throws MobbedException {
+	private int setQaulificationValues(PreparedStatement pstmt,
+			String regExp, String[][] tags, String[][] attributes, String[] columns,
+			String[][] values, String[] doubleColumns, Double[][] doubleValues,
+			double[][] range) throws MobbedException {
 		int valueCount = 1;
 		if (tags != null)
 			valueCount = setTagAttributesStatementValues(pstmt, valueCount,
-					tags);
+					regExp, tags);
 		if (attributes != null)
 			valueCount = setTagAttributesStatementValues(pstmt, valueCount,
-					attributes);
+					regExp, attributes);
 		if (!isEmpty(columns))
 			valueCount = setNonDoubleTableStatementValues(pstmt, valueCount,
-					columns, values);
+					regExp, columns, values);
 		if (!isEmpty(doubleColumns))
 			valueCount = setDoubleTableStatementValues(pstmt, valueCount,
-					doubleColumns, doubleValues);
-	}
-
-	/**
-	 * Set the values of a prepared statement object that retrieves rows from
-	 * the database.
-	 * 
-	 * @param pstmt
-	 *            the prepared statement object used to do the query
-	 * @param columns
-	 *            the names of the columns
-	 * @param values
-	 *            the values of the columns
-	 * @throws MobbedException
-	 *             if an error occurs
-	 */
-	private void setSelectStatementValues(PreparedStatement pstmt,
-			String[] columns, String[] values) throws MobbedException {
-		for (int i = 0; i < values.length; i++) {
-			int targetType = lookupTargetType(columns[i]);
-			try {
-				pstmt.setObject(i + 1, values[i], targetType);
-			} catch (SQLException ex) {
-				throw new MobbedException("Could not set value\n"
-						+ ex.getMessage());
-			}
-		}
+					doubleColumns, doubleValues, range);
+		return valueCount;
 	}
 
 	/**
@@ -1404,6 +2796,8 @@ public class ManageDB {
 	 *            the prepared statement object used to do the query
 	 * @param valueCount
 	 *            the number of values that have already been set
+	 * @param regExp
+	 *            on if regular expressions are allowed, off if otherwise
 	 * @param values
 	 *            the values of the tags or attributes search criteria
 	 * @return the number of total values that have been set
@@ -1411,19 +2805,24 @@ public class ManageDB {
 	 *             if an error occurs
 	 */
 	private int setTagAttributesStatementValues(PreparedStatement pstmt,
-			int valueCount, String[][] values) throws MobbedException {
+			int valueCount, String regExp, String[][] values)
+			throws MobbedException {
 		int numGroups = values.length;
 		for (int i = 0; i < numGroups; i++) {
 			int numValues = values[i].length;
-			for (int j = 0; j < numValues; j++) {
-				values[i][j] = values[i][j].toUpperCase();
-				try {
-					pstmt.setObject(valueCount, values[i][j], Types.VARCHAR);
-				} catch (SQLException ex) {
-					throw new MobbedException("Could not set value\n"
-							+ ex.getMessage());
-				}
-				valueCount++;
+			for (int j = 0; j < numValues; j++)
+				values[i][j] = values[i][j].toUpperCase();
+			try {
+				if (regExp.equalsIgnoreCase("on")) {
+					for (int j = 0; j < numValues; j++)
+						pstmt.setObject(valueCount++, values[i][j],
+								Types.VARCHAR);
+				} else
+					pstmt.setArray(valueCount++,
+							connection.createArrayOf("varchar", values[i]));
+			} catch (SQLException ex) {
+				throw new MobbedException("Could not set value\n"
+						+ ex.getMessage());
 			}
 		}
 		return valueCount;
@@ -1479,6 +2878,76 @@ public class ManageDB {
 		}
 	}
 
+	/**
+	 * Inserts or updates rows in the database with a single batch of INSERT
+	 * ... ON CONFLICT statements. Rows without key values are given generated
+	 * keys.
+	 * 
+	 * @param table
+	 *            the name of the database table
+	 * @param columns
+	 *            the names of the non-double database columns
+	 * @param values
+	 *            the values of the non-double database columns
+	 * @param doubleValues
+	 *            the values of the double database columns
+	 * @return the keys of the database rows that were inserted and/or updated
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	private String[] upsertRows(String table, String[] columns,
+			String[][] values, Double[][] doubleValues) throws MobbedException {
+		table = table.toLowerCase();
+		validateTableName(table);
+		validateColumns(columns);
+		int numRows = values.length;
+		int numValues = values[0].length;
+		String[] keyList = new String[numRows];
+		ArrayList<Integer> keyIndexes = findKeyIndexes(table, columns);
+		if (keyIndexes.isEmpty()
+				|| keyIndexes.size() != keyMap.get(table).length)
+			throw new MobbedException(
+					"All primary key columns must be given to upsert rows");
+		String upsertQry = constructUpsertQuery(keyIndexes, table, columns);
+		PreparedStatement upsertStmt = null;
+		try {
+			QueryEvent event = new QueryEvent();
+			upsertStmt = statementCache.prepare(upsertQry);
+			for (int i = 0; i < numRows; i++) {
+				for (int j = 0; j < numValues; j++) {
+					if (!isEmpty(values[i][j]))
+						validateValues(columns[j], values[i][j]);
+					else {
+						if (!keyIndexes.contains(j)
+								&& !columns[j].equals("dataset_session_uuid"))
+							values[i][j] = getDefaultValue(columns[j]);
+					}
+				}
+				// throws if only part of a composite key is given
+				keysEmpty(keyIndexes, values[i]);
+				values[i] = generateKeys(keyIndexes, table, columns, values[i]);
+				setInsertStatementValues(upsertStmt, columns, values[i],
+						isEmpty(doubleValues) ? null : doubleValues[i]);
+				if (verbose)
+					System.out.println(upsertStmt);
+				upsertStmt.addBatch();
+				keyList[i] = addKeyValue(keyIndexes, values[i]);
+			}
+			event.prepared(upsertQry, numRows);
+			int[] upsertCounts = upsertStmt.executeBatch();
+			event.executed();
+			event.fetched(countUpdates(upsertCounts));
+			fireQueryEvent(event);
+		} catch (SQLException me) {
+			throw new MobbedException(
+					"Could not upsert row(s) in the database\n"
+							+ me.getMessage());
+		} finally {
+			statementCache.release(upsertStmt);
+		}
+		return keyList;
+	}
+
 	/**
 	 * Validates the column names of a table in the database.
 	 * 
@@ -1596,6 +3065,67 @@ public class ManageDB {
 			mds[i].close();
 		}
 		dbMap = null;
+		ConnectionPool.closeAll();
+	}
+
+	/**
+	 * Creates a ManageDB object with a connection leased from the pool of the
+	 * database. Closing the ManageDB object returns the connection to the
+	 * pool, so short lived ManageDB objects do not each open a connection.
+	 * 
+	 * @param dbname
+	 *            the name of the database
+	 * @param hostname
+	 *            the host name of the database
+	 * @param username
+	 *            the user name of the database
+	 * @param password
+	 *            the password of the database
+	 * @param verbose
+	 *            prints informative messages if true
+	 * @return a ManageDB object using a pooled connection
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	public static ManageDB lease(String dbname, String hostname,
+			String username, String password, boolean verbose)
+			throws MobbedException {
+		return lease(dbname, hostname, username, password, null, verbose);
+	}
+
+	/**
+	 * Creates a ManageDB object with a connection leased from the pool of the
+	 * database and driver options.
+	 * 
+	 * @param dbname
+	 *            the name of the database
+	 * @param hostname
+	 *            the host name of the database
+	 * @param username
+	 *            the user name of the database
+	 * @param password
+	 *            the password of the database
+	 * @param options
+	 *            the driver options of the pooled connections, null for the
+	 *            driver defaults
+	 * @param verbose
+	 *            prints informative messages if true
+	 * @return a ManageDB object using a pooled connection
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	public static ManageDB lease(String dbname, String hostname,
+			String username, String password, ConnectionOptions options,
+			boolean verbose) throws MobbedException {
+		ConnectionPool pool = ConnectionPool.getPool(dbname, hostname,
+				username, password, options);
+		Connection dbCon = pool.lease();
+		try {
+			return new ManageDB(dbCon, pool, options, verbose);
+		} catch (MobbedException ex) {
+			pool.release(dbCon);
+			throw ex;
+		}
 	}
 
 	/**
@@ -1618,13 +3148,46 @@ public class ManageDB {
 	public static void createCredentials(String filename, String dbname,
 			String hostname, String username, String password)
 			throws MobbedException {
+		createCredentials(filename, dbname, hostname, username, password, null);
+	}
+
+	/**
+	 * Stores the database credentials and driver options in a property file.
+	 * Call loadCredentials and loadConnectionOptions to get them back.
+	 * 
+	 * @param filename
+	 *            the filename of the property file
+	 * @param dbname
+	 *            the name of the database
+	 * @param hostname
+	 *            the host name of the database
+	 * @param username
+	 *            the user name of the database
+	 * @param password
+	 *            the password of the database
+	 * @param options
+	 *            the driver options of the connection, null for the driver
+	 *            defaults
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	public static void createCredentials(String filename, String dbname,
+			String hostname, String username, String password,
+			ConnectionOptions options) throws MobbedException {
 		Properties prop = new Properties();
 		try {
+			if (options != null)
+				options.store(prop);
 			prop.setProperty("dbname", dbname);
 			prop.setProperty("hostname", hostname);
 			prop.setProperty("username", username);
 			prop.setProperty("password", password);
-			prop.store(new FileOutputStream(filename), null);
+			FileOutputStream out = new FileOutputStream(filename);
+			try {
+				prop.store(out, null);
+			} finally {
+				out.close();
+			}
 		} catch (IOException ex) {
 			throw new MobbedException("Could not create credentials\n"
 					+ ex.getMessage());
@@ -1654,6 +3217,37 @@ public class ManageDB {
 	public static void createDatabase(String dbname, String hostname,
 			String username, String password, String filename, boolean verbose)
 			throws MobbedException {
+		createDatabase(dbname, hostname, username, password, filename,
+				verbose, false);
+	}
+
+	/**
+	 * Creates and populates a database. The database must not already exist to
+	 * create it. The database will be created from a valid SQL file.
+	 * Optionally the pg_trgm extension is enabled and trigram indexes are
+	 * created for the columns that are searched with regular expressions.
+	 * 
+	 * @param dbname
+	 *            the name of the database
+	 * @param hostname
+	 *            the host name of the database
+	 * @param username
+	 *            the user name of the database
+	 * @param password
+	 *            the password of the database
+	 * @param filename
+	 *            the name of the sql file
+	 * @param verbose
+	 *            prints informative messages if true
+	 * @param trigramIndexes
+	 *            creates trigram indexes for regular expression searches if
+	 *            true
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	public static void createDatabase(String dbname, String hostname,
+			String username, String password, String filename,
+			boolean verbose, boolean trigramIndexes) throws MobbedException {
 		if (isEmpty(filename))
 			throw new MobbedException("The SQL file does not exist");
 		try {
@@ -1663,7 +3257,10 @@ public class ManageDB {
 			templateConnection.close();
 			Connection databaseConnection = establishConnection(dbname,
 					hostname, username, password);
+			SchemaSnapshot.clear();
 			populateTables(databaseConnection, filename);
+			if (trigramIndexes)
+				createTrigramIndexes(databaseConnection);
 			databaseConnection.close();
 			if (verbose)
 				System.out.println("Database " + dbname + " created");
@@ -1695,6 +3292,7 @@ public class ManageDB {
 	public static void deleteDatabase(String dbname, String hostname,
 			String username, String password, boolean verbose)
 			throws MobbedException {
+		ConnectionPool.closeAll();
 		try {
 			Connection databaseConnection = establishConnection(dbname,
 					hostname, username, password);
@@ -1706,6 +3304,7 @@ public class ManageDB {
 					hostname, username, password);
 			dropDatabase(templateConnection, dbname);
 			templateConnection.close();
+			SchemaSnapshot.clear();
 		} catch (SQLException ex) {
 			throw new MobbedException("Could not delete the database\n"
 					+ ex.getMessage());
@@ -1714,6 +3313,79 @@ public class ManageDB {
 			System.out.println("Database " + dbname + " dropped");
 	}
 
+	/**
+	 * Upgrades an existing database by creating the indexes used by tag,
+	 * attribute and entity searches. Indexes that already exist are skipped,
+	 * so the upgrade can be run more than once.
+	 * 
+	 * @param dbname
+	 *            the name of the database
+	 * @param hostname
+	 *            the host name of the database
+	 * @param username
+	 *            the user name of the database
+	 * @param password
+	 *            the password of the database
+	 * @param verbose
+	 *            prints informative messages if true
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	public static void upgradeDatabase(String dbname, String hostname,
+			String username, String password, boolean verbose)
+			throws MobbedException {
+		upgradeDatabase(dbname, hostname, username, password, verbose, false);
+	}
+
+	/**
+	 * Upgrades an existing database by creating the indexes used by tag,
+	 * attribute and entity searches. Optionally the pg_trgm extension is
+	 * enabled and trigram indexes are created for the columns that are
+	 * searched with regular expressions. An unpartitioned NUMERIC_STREAMS
+	 * table is turned into a partitioned table whose default partition holds
+	 * the existing samples, so that NumericStreams can load new recordings
+	 * into their own partitions. Steps that are already done are skipped, so
+	 * the upgrade can be run more than once.
+	 * 
+	 * @param dbname
+	 *            the name of the database
+	 * @param hostname
+	 *            the host name of the database
+	 * @param username
+	 *            the user name of the database
+	 * @param password
+	 *            the password of the database
+	 * @param verbose
+	 *            prints informative messages if true
+	 * @param trigramIndexes
+	 *            creates trigram indexes for regular expression searches if
+	 *            true
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	public static void upgradeDatabase(String dbname, String hostname,
+			String username, String password, boolean verbose,
+			boolean trigramIndexes) throws MobbedException {
+		try {
+			Connection databaseConnection = establishConnection(dbname,
+					hostname, username, password);
+			Statement stmt = databaseConnection.createStatement();
+			for (int i = 0; i < searchIndexes.length; i++)
+				stmt.execute(searchIndexes[i]);
+			if (trigramIndexes)
+				createTrigramIndexes(databaseConnection);
+			partitionNumericStreams(databaseConnection);
+			stmt.execute("ANALYZE tags");
+			stmt.execute("ANALYZE attributes");
+			databaseConnection.close();
+		} catch (SQLException ex) {
+			throw new MobbedException("Could not upgrade the database\n"
+					+ ex.getMessage());
+		}
+		if (verbose)
+			System.out.println("Database " + dbname + " upgraded");
+	}
+
 	/**
 	 * Executes a SQL statement. The sql statement must be valid or an exception
 	 * will be thrown.
@@ -1773,6 +3445,35 @@ public class ManageDB {
 		return empty;
 	}
 
+	/**
+	 * Loads the driver options from a property file created by
+	 * createCredentials.
+	 * 
+	 * @param filename
+	 *            the name of the property file
+	 * @return the driver options, with the driver defaults for options that
+	 *         are not stored
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	public static ConnectionOptions loadConnectionOptions(String filename)
+			throws MobbedException {
+		Properties prop = new Properties();
+		try {
+			FileInputStream in = new FileInputStream(filename);
+			try {
+				prop.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException ex) {
+			throw new MobbedException(
+					"Could not load the connection options from the property file\n"
+							+ ex.getMessage());
+		}
+		return ConnectionOptions.load(prop);
+	}
+
 	/**
 	 * Loads the database credentials from a property file. The credentials will
 	 * be stored in a array.
@@ -1788,7 +3489,7 @@ public class ManageDB {
 		String[] credentials = {};
 		try {
 			prop.load(new FileInputStream(filename));
-			credentials = new String[prop.size()];
+			credentials = new String[4];
 			credentials[0] = prop.getProperty("dbname");
 			credentials[1] = prop.getProperty("hostname");
 			credentials[2] = prop.getProperty("username");
@@ -1801,6 +3502,23 @@ public class ManageDB {
 		return credentials;
 	}
 
+	/**
+	 * Closes a statement that is not in the statement cache, ignoring errors
+	 * since the statement is discarded.
+	 * 
+	 * @param stmt
+	 *            the statement to close, ignored if null
+	 */
+	private static void closeStatement(Statement stmt) {
+		if (stmt == null)
+			return;
+		try {
+			stmt.close();
+		} catch (SQLException ex) {
+			// the statement is discarded either way
+		}
+	}
+
 	/**
 	 * Creates a database. The database must not already exist to create it. The
 	 * database is created without any tables, columns, and data.
@@ -1831,6 +3549,35 @@ public class ManageDB {
 		}
 	}
 
+	/**
+	 * Enables the pg_trgm extension and creates a GIN trigram index on the
+	 * upper case values of every character varying column. These are the
+	 * columns retrieveRows searches with case insensitive regular
+	 * expressions, including tag names and attribute values.
+	 * 
+	 * @param dbCon
+	 *            a connection to the database
+	 * @throws SQLException
+	 *             if an error occurs
+	 */
+	private static void createTrigramIndexes(Connection dbCon)
+			throws SQLException {
+		Statement stmt = dbCon.createStatement();
+		stmt.execute("CREATE EXTENSION IF NOT EXISTS pg_trgm");
+		ResultSet rs = stmt.executeQuery(trigramColumnQuery);
+		ArrayList<String> indexes = new ArrayList<String>();
+		while (rs.next()) {
+			String table = rs.getString(1);
+			String column = rs.getString(2);
+			indexes.add("CREATE INDEX IF NOT EXISTS " + column
+					+ "_trgm_idx ON " + table + " USING gin (UPPER(" + column
+					+ ") gin_trgm_ops)");
+		}
+		rs.close();
+		for (String index : indexes)
+			stmt.execute(index);
+	}
+
 	/**
 	 * Deletes the objects associated with the oids in the datadefs table.
 	 * 
@@ -1944,15 +3691,45 @@ public class ManageDB {
 	private static Connection establishConnection(String dbname,
 			String hostname, String username, String password)
 			throws MobbedException {
+		return establishConnection(dbname, hostname, username, password, null);
+	}
+
+	/**
+	 * Establishes a connection to a database with driver options. The
+	 * database must exist and allow connections for a connection to be
+	 * established.
+	 * 
+	 * @param dbname
+	 *            the name of the database
+	 * @param hostname
+	 *            the host name of the database
+	 * @param username
+	 *            the user name of the database
+	 * @param password
+	 *            the password of the database
+	 * @param options
+	 *            the driver options of the connection, null for the driver
+	 *            defaults
+	 * @return a connection to the database
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	static Connection establishConnection(String dbname, String hostname,
+			String username, String password, ConnectionOptions options)
+			throws MobbedException {
 		Connection dbCon = null;
 		String url = "jdbc:postgresql://" + hostname + "/" + dbname;
+		Properties prop = options == null ? new Properties() : options
+				.toProperties();
+		prop.setProperty("user", username);
+		prop.setProperty("password", password);
 		try {
 			Class.forName("org.postgresql.Driver");
 		} catch (ClassNotFoundException ex) {
 			throw new MobbedException("Class was not found\n" + ex.getMessage());
 		}
 		try {
-			dbCon = DriverManager.getConnection(url, username, password);
+			dbCon = DriverManager.getConnection(url, prop);
 		} catch (SQLException ex) {
 			throw new MobbedException(
 					"Could not establish a connection to database " + dbname
@@ -1961,6 +3738,52 @@ public class ManageDB {
 		return dbCon;
 	}
 
+	/**
+	 * Turns an unpartitioned NUMERIC_STREAMS table into a table partitioned by
+	 * data definition. The existing table becomes the default partition. Does
+	 * nothing if the table is already partitioned.
+	 * 
+	 * @param dbCon
+	 *            a connection to the database
+	 * @throws SQLException
+	 *             if an error occurs
+	 */
+	private static void partitionNumericStreams(Connection dbCon)
+			throws SQLException {
+		Statement stmt = dbCon.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery("SELECT relkind FROM pg_class"
+					+ " WHERE oid = to_regclass('public.numeric_streams')");
+			boolean partitioned = !rs.next() || !"r".equals(rs.getString(1));
+			rs.close();
+			if (partitioned)
+				return;
+			boolean autoCommit = dbCon.getAutoCommit();
+			dbCon.setAutoCommit(false);
+			try {
+				stmt.execute("ALTER TABLE numeric_streams RENAME TO numeric_streams_default");
+				stmt.execute("ALTER INDEX numeric_streams_pkey RENAME TO numeric_streams_default_pkey");
+				stmt.execute("CREATE TABLE numeric_streams (LIKE numeric_streams_default"
+						+ " INCLUDING DEFAULTS INCLUDING CONSTRAINTS)"
+						+ " PARTITION BY LIST (numeric_stream_datadef_uuid)");
+				stmt.execute("ALTER TABLE numeric_streams ADD PRIMARY KEY"
+						+ " (numeric_stream_datadef_uuid, numeric_stream_record_position)");
+				stmt.execute("ALTER TABLE numeric_streams ADD FOREIGN KEY"
+						+ " (numeric_stream_datadef_uuid) REFERENCES datadefs (datadef_uuid)");
+				stmt.execute("ALTER TABLE numeric_streams ATTACH PARTITION"
+						+ " numeric_streams_default DEFAULT");
+				dbCon.commit();
+			} catch (SQLException ex) {
+				dbCon.rollback();
+				throw ex;
+			} finally {
+				dbCon.setAutoCommit(autoCommit);
+			}
+		} finally {
+			stmt.close();
+		}
+	}
+
 	/**
 	 * Creates the database tables and populates them from a valid SQL file.
 	 * 
@@ -1993,6 +3816,28 @@ public class ManageDB {
 		}
 	}
 
+	/**
+	 * Registers a NumericStreams object that buffers samples with the ManageDB
+	 * objects of its connection, so its buffer is written on commit and close.
+	 * 
+	 * @param dbCon
+	 *            the connection of the NumericStreams object
+	 * @param ns
+	 *            the NumericStreams object
+	 */
+	static synchronized void addStreams(Connection dbCon, NumericStreams ns) {
+		if (dbMap == null)
+			return;
+		for (ManageDB md : dbMap.keySet()) {
+			if (md.connection == dbCon) {
+				synchronized (md.streams) {
+					if (!md.streams.contains(ns))
+						md.streams.add(ns);
+				}
+			}
+		}
+	}
+
 	/**
 	 * Puts the ManageDB object in the hashmap
 	 * 
@@ -2019,4 +3864,51 @@ public class ManageDB {
 		}
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Unregisters a NumericStreams object registered by addStreams.
+	 * 
+	 * @param dbCon
+	 *            the connection of the NumericStreams object
+	 * @param ns
+	 *            the NumericStreams object
+	 */
+	static synchronized void removeStreams(Connection dbCon, NumericStreams ns) {
+		if (dbMap == null)
+			return;
+		for (ManageDB md : dbMap.keySet()) {
+			if (md.connection == dbCon) {
+				synchronized (md.streams) {
+					md.streams.remove(ns);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A page of a data cursor fetched ahead in the background.
+	 */
+	private static class CursorPrefetch {
+		/**
+		 * The number of rows requested for the page
+		 */
+		private int fetchSize;
+		/**
+		 * The rows of the page
+		 */
+		private Future<String[][]> rows;
+
+		/**
+		 * Creates a CursorPrefetch object.
+		 * 
+		 * @param fetchSize
+		 *            the number of rows requested for the page
+		 * @param rows
+		 *            the rows of the page
+		 */
+		private CursorPrefetch(int fetchSize, Future<String[][]> rows) {
+			this.fetchSize = fetchSize;
+			this.rows = rows;
+		}
+	}
+
+}
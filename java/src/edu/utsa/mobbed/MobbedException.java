@@ -24,6 +24,7 @@ public class MobbedException extends Exception {
 	 *            - the message of the exception
 	 */
 	public MobbedException(String message) {
+		super(message);
 		this.message = message;
 	}
 
@@ -2,7 +2,15 @@ package edu.utsa.mobbed;
 
 import java.io.*;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.nio.ByteBuffer;
 
 import org.postgresql.copy.CopyManager;
@@ -22,6 +30,30 @@ import org.postgresql.copy.CopyManager;
  */
 public class NumericStreams {
 
+	/**
+	 * The UUID of the data definition of the buffered samples
+	 */
+	private UUID bufferDatadefUuid;
+	/**
+	 * The position of the first buffered sample
+	 */
+	private long bufferPosition;
+	/**
+	 * The number of buffered samples
+	 */
+	private int bufferSize;
+	/**
+	 * The time in milliseconds when the first sample was buffered
+	 */
+	private long bufferStartTime;
+	/**
+	 * The times of the buffered samples
+	 */
+	private double[] bufferTimes;
+	/**
+	 * The values of the buffered samples
+	 */
+	private double[][] bufferValues;
 	/**
 	 * A CopyManager object used to copy data between a file and a table
 	 */
@@ -36,6 +68,15 @@ public class NumericStreams {
 	 * A connection to the database
 	 */
 	private Connection dbCon;
+	/**
+	 * The maximum age in milliseconds of buffered samples, 0 if coalescing is
+	 * off
+	 */
+	private long maxBufferAge;
+	/**
+	 * The maximum number of buffered samples, 0 if coalescing is off
+	 */
+	private int maxBufferSize;
 	/**
 	 * The number of bytes used for a DOUBLE
 	 */
@@ -52,6 +93,14 @@ public class NumericStreams {
 	 * The number of bytes used for a SHORT
 	 */
 	private static final int SHORT_BYTES = 2;
+	/**
+	 * The reads that are currently fetching from the database
+	 */
+	private static final ArrayList<InFlightRead> inFlightReads = new ArrayList<InFlightRead>();
+	/**
+	 * The number of reads served by a read that was already fetching
+	 */
+	private static long sharedReads;
 
 	/**
 	 * Creates a Numeric Streams object.
@@ -72,6 +121,95 @@ public class NumericStreams {
 		}
 	}
 
+	static class InFlightRead {
+		/**
+		 * The data definition UUID
+		 */
+		UUID datadefUuid;
+		/**
+		 * The connection the read is fetching on
+		 */
+		Connection dbCon;
+		/**
+		 * Signals that the fetch has finished
+		 */
+		CountDownLatch done;
+		/**
+		 * The number of channels
+		 */
+		int elementCount;
+		/**
+		 * The end position of the stream
+		 */
+		int endPosition;
+		/**
+		 * The error of the fetch, null if it succeeded
+		 */
+		MobbedException error;
+		/**
+		 * The number of readers waiting on the fetch
+		 */
+		int followers;
+		/**
+		 * The samples fetched
+		 */
+		double[][] result;
+		/**
+		 * The start position of the stream
+		 */
+		int startPosition;
+
+		/**
+		 * Creates a InFlightRead object.
+		 * 
+		 * @param dbCon
+		 *            the connection the read is fetching on
+		 * @param datadefUuid
+		 *            UUID of the DataDef
+		 * @param startPosition
+		 *            start position for retrieval
+		 * @param endPosition
+		 *            end position for retrieval
+		 * @param elementCount
+		 *            total number of channels in this dataset
+		 */
+		public InFlightRead(Connection dbCon, UUID datadefUuid,
+				int startPosition, int endPosition, int elementCount) {
+			this.dbCon = dbCon;
+			this.datadefUuid = datadefUuid;
+			this.startPosition = startPosition;
+			this.endPosition = endPosition;
+			this.elementCount = elementCount;
+			this.done = new CountDownLatch(1);
+		}
+
+		/**
+		 * Checks if this read covers a requested read. Only reads on the same
+		 * connection are shared, so a reader never sees rows of another
+		 * transaction.
+		 * 
+		 * @param dbCon
+		 *            the connection of the requested read
+		 * @param datadefUuid
+		 *            UUID of the DataDef
+		 * @param startPosition
+		 *            start position for retrieval
+		 * @param endPosition
+		 *            end position for retrieval
+		 * @param elementCount
+		 *            total number of channels in this dataset
+		 * @return true if the requested samples are contained in this read
+		 */
+		public boolean contains(Connection dbCon, UUID datadefUuid,
+				int startPosition, int endPosition, int elementCount) {
+			return this.dbCon == dbCon
+					&& this.datadefUuid.equals(datadefUuid)
+					&& this.elementCount == elementCount
+					&& this.startPosition <= startPosition
+					&& this.endPosition >= endPosition;
+		}
+	}
+
 	class ReadBinaryData implements Runnable {
 		/**
 		 * The data definition UUID
@@ -134,6 +272,84 @@ public class NumericStreams {
 		}
 	}
 
+	static class ResampleData implements Callable<double[][]> {
+		/**
+		 * The common times that the stream is resampled to
+		 */
+		double[] commonTimes;
+		/**
+		 * The number of elements in the stream
+		 */
+		int elementCount;
+		/**
+		 * The number of stored samples
+		 */
+		int numSamples;
+		/**
+		 * The times of the stored samples, which may be longer than the
+		 * number of samples
+		 */
+		double[] times;
+		/**
+		 * The values of the stored samples
+		 */
+		ArrayList<double[]> values;
+
+		/**
+		 * Creates a ResampleData object.
+		 * 
+		 * @param times
+		 *            the times of the stored samples in ascending order
+		 * @param numSamples
+		 *            the number of stored samples
+		 * @param values
+		 *            the values of the stored samples
+		 * @param elementCount
+		 *            the number of elements in the stream
+		 * @param commonTimes
+		 *            the common times that the stream is resampled to
+		 */
+		public ResampleData(double[] times, int numSamples,
+				ArrayList<double[]> values, int elementCount,
+				double[] commonTimes) {
+			this.times = times;
+			this.numSamples = numSamples;
+			this.values = values;
+			this.elementCount = elementCount;
+			this.commonTimes = commonTimes;
+		}
+
+		/**
+		 * Linearly interpolates the stored samples at the common times. Common
+		 * times that fall outside of the stored samples are set to NaN.
+		 */
+		public double[][] call() {
+			double[][] resampled = new double[commonTimes.length][elementCount];
+			int k = 0;
+			for (int i = 0; i < commonTimes.length; i++) {
+				double t = commonTimes[i];
+				while (k < numSamples - 2 && times[k + 1] < t)
+					k++;
+				if (numSamples == 0 || t < times[0]
+						|| t > times[numSamples - 1]) {
+					Arrays.fill(resampled[i], Double.NaN);
+				} else if (numSamples == 1 || t == times[k]) {
+					System.arraycopy(values.get(k), 0, resampled[i], 0,
+							elementCount);
+				} else {
+					double t0 = times[k];
+					double t1 = times[k + 1];
+					double[] v0 = values.get(k);
+					double[] v1 = values.get(k + 1);
+					double w = t1 == t0 ? 0 : (t - t0) / (t1 - t0);
+					for (int j = 0; j < elementCount; j++)
+						resampled[i][j] = v0[j] + w * (v1[j] - v0[j]);
+				}
+			}
+			return resampled;
+		}
+	}
+
 	class WriteBinaryData implements Runnable {
 		/**
 		 * PipedOutputStream to write the data
@@ -211,7 +427,7 @@ public class NumericStreams {
 							* width);
 					for (int k = 0; k < width; k++) {
 						template.putLong(26, signalPosition++);
-						template.putDouble(38, times[k]);
+						template.putDouble(38, times[a + k]);
 						for (int b = 0; b < rows; b++) {
 							template.putDouble(74 + b * 12, values[b][a + k]);
 						}
@@ -229,6 +445,32 @@ public class NumericStreams {
 		}
 	}
 
+	/**
+	 * Writes the buffered samples to the database as a single COPY. Does
+	 * nothing if no samples are buffered. The samples stay buffered if the
+	 * write fails.
+	 * 
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	public void flush() throws MobbedException {
+		if (bufferSize == 0)
+			return;
+		int rows = bufferValues.length;
+		double[][] values = new double[rows][];
+		for (int b = 0; b < rows; b++)
+			values[b] = Arrays.copyOf(bufferValues[b], bufferSize);
+		double[] times = Arrays.copyOf(bufferTimes, bufferSize);
+		UUID currentUuid = datadefUuid;
+		datadefUuid = bufferDatadefUuid;
+		try {
+			writeStream(values, times, bufferPosition);
+			bufferSize = 0;
+		} finally {
+			datadefUuid = currentUuid;
+		}
+	}
+
 	/**
 	 * Gets the data definition UUID.
 	 * 
@@ -246,15 +488,31 @@ public class NumericStreams {
 	 *             if an error occurs
 	 */
 	public long getMaxPosition() throws MobbedException {
-		int maxPosition = 0;
+		return Math.max(retrieveMaxPosition(), 0);
+	}
+
+	/**
+	 * Retrieves the last stored position of the numeric stream.
+	 * 
+	 * @return last position of the stream, -1 if the stream has no samples
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	private long retrieveMaxPosition() throws MobbedException {
+		long maxPosition = -1;
 		String selectQuery = "SELECT MAX(NUMERIC_STREAM_RECORD_POSITION) FROM NUMERIC_STREAMS WHERE"
 				+ " NUMERIC_STREAM_DATADEF_UUID = ?";
 		try {
 			PreparedStatement selectStmt = dbCon.prepareStatement(selectQuery);
 			selectStmt.setObject(1, datadefUuid, Types.OTHER);
 			ResultSet rs = selectStmt.executeQuery();
-			if (rs.next())
-				maxPosition = rs.getInt(1);
+			if (rs.next()) {
+				maxPosition = rs.getLong(1);
+				if (rs.wasNull())
+					maxPosition = -1;
+			}
+			rs.close();
+			selectStmt.close();
 		} catch (SQLException ex) {
 			throw new MobbedException("Could not retrieve the max position\n"
 					+ ex.getMessage());
@@ -273,7 +531,289 @@ public class NumericStreams {
 	}
 
 	/**
-	 * Retrieves data samples between a given position range. Creates a separate
+	 * Retrieves data samples between a given position range. Concurrent
+	 * requests on the same connection for the same data definition whose range
+	 * is contained in a read that is already fetching wait for that read
+	 * instead of issuing their own. Each caller receives its own copy of the
+	 * samples.
+	 * 
+	 * @param startPosition
+	 *            start time for retrieval
+	 * @param endPosition
+	 *            end time for retrieval
+	 * @param elementCount
+	 *            total number of channels in this dataset
+	 * @return A 2Darray of double values. Each row represents a single time
+	 *         point and each values is a sample from each element.
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	public double[][] retrieveByPosition(int startPosition, int endPosition,
+			int elementCount) throws MobbedException {
+		InFlightRead read = null;
+		boolean leader = false;
+		synchronized (inFlightReads) {
+			for (InFlightRead inFlight : inFlightReads) {
+				if (inFlight.contains(dbCon, datadefUuid, startPosition,
+						endPosition, elementCount)) {
+					read = inFlight;
+					read.followers++;
+					sharedReads++;
+					break;
+				}
+			}
+			if (read == null) {
+				read = new InFlightRead(dbCon, datadefUuid, startPosition,
+						endPosition, elementCount);
+				inFlightReads.add(read);
+				leader = true;
+			}
+		}
+		if (leader) {
+			boolean shared;
+			try {
+				read.result = readStream(startPosition, endPosition,
+						elementCount);
+			} catch (MobbedException ex) {
+				read.error = ex;
+			} finally {
+				synchronized (inFlightReads) {
+					inFlightReads.remove(read);
+					shared = read.followers > 0;
+				}
+				read.done.countDown();
+			}
+			if (read.error != null)
+				throw read.error;
+			if (!shared)
+				return read.result;
+		} else {
+			try {
+				read.done.await();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new MobbedException("Could not retrieve numeric stream\n"
+						+ ex.getMessage());
+			}
+			if (read.error != null)
+				throw read.error;
+		}
+		int offset = startPosition - read.startPosition;
+		double[][] signal_data = new double[endPosition - startPosition][];
+		for (int i = 0; i < signal_data.length; i++)
+			signal_data[i] = read.result[offset + i].clone();
+		return signal_data;
+	}
+
+	/**
+	 * Saves an array of data samples to the database. If coalescing is on, the
+	 * samples are buffered and written together with consecutive contiguous
+	 * samples of the same data definition. Otherwise the samples are written
+	 * immediately by writeStream.
+	 * 
+	 * @param values
+	 *            2Darray of doubles values. Each row represent samples from an
+	 *            element
+	 * @param times
+	 *            the times of the samples
+	 * @param signalPosition
+	 *            the position of samples
+	 * @return true if the store was successful, false if otherwise
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	public boolean save(double[][] values, double[] times, long signalPosition)
+			throws MobbedException {
+		if (maxBufferSize <= 0)
+			return writeStream(values, times, signalPosition);
+		if (bufferSize > 0
+				&& (!datadefUuid.equals(bufferDatadefUuid)
+						|| values.length != bufferValues.length || signalPosition != bufferPosition
+						+ bufferSize))
+			flush();
+		bufferSamples(values, times, signalPosition);
+		if (bufferSize >= maxBufferSize
+				|| (maxBufferAge > 0 && System.currentTimeMillis()
+						- bufferStartTime >= maxBufferAge))
+			flush();
+		return true;
+	}
+
+	/**
+	 * Saves an array of data samples to the database in bounded transactions.
+	 * The samples are written in chunks of at most rowsPerTransaction samples
+	 * and each chunk is committed before the next is written, so a failure only
+	 * loses the chunk in progress. Samples at or before the last committed
+	 * position of the data definition are skipped, so calling this again with
+	 * the same arguments after a failure resumes where the last committed chunk
+	 * ended. If auto commit mode is off, each chunk commits the current
+	 * transaction of the connection, including any work done on it before
+	 * this call, and a failed chunk rolls it back. Use a connection without
+	 * other pending work, or turn auto commit mode on.
+	 * 
+	 * @param values
+	 *            2Darray of doubles values. Each row represent samples from an
+	 *            element
+	 * @param times
+	 *            the times of the samples
+	 * @param signalPosition
+	 *            the position of samples
+	 * @param rowsPerTransaction
+	 *            the maximum number of samples written per transaction
+	 * @return the last committed position of the stream
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	public long saveChunked(double[][] values, double[] times,
+			long signalPosition, int rowsPerTransaction) throws MobbedException {
+		if (rowsPerTransaction <= 0)
+			throw new MobbedException(
+					"The rows per transaction must be positive");
+		flush();
+		int rows = values.length;
+		int cols = values[0].length;
+		long committedPosition = retrieveMaxPosition();
+		int start = (int) Math.max(0,
+				Math.min(cols, committedPosition - signalPosition + 1));
+		try {
+			boolean autoCommit = dbCon.getAutoCommit();
+			for (int a = start; a < cols; a = a + rowsPerTransaction) {
+				int width = Math.min(rowsPerTransaction, cols - a);
+				double[][] chunkValues = new double[rows][];
+				for (int b = 0; b < rows; b++)
+					chunkValues[b] = Arrays.copyOfRange(values[b], a, a + width);
+				double[] chunkTimes = Arrays.copyOfRange(times, a, a + width);
+				try {
+					writeStream(chunkValues, chunkTimes, signalPosition + a);
+					if (!autoCommit)
+						dbCon.commit();
+				} catch (MobbedException ex) {
+					if (!autoCommit)
+						dbCon.rollback();
+					throw new MobbedException(
+							"Could not save numeric stream after position "
+									+ committedPosition + "\n" + ex.getMessage());
+				}
+				committedPosition = signalPosition + a + width - 1;
+			}
+		} catch (SQLException ex) {
+			throw new MobbedException("Could not commit numeric stream chunk\n"
+					+ ex.getMessage());
+		}
+		return committedPosition;
+	}
+
+	/**
+	 * Saves an array of data samples to the database with a given load mode.
+	 * The mode "copy" is the same as save without a mode. The mode "staging"
+	 * is meant for loading a new recording in one call. The samples are
+	 * copied with FREEZE into a new table created in the same transaction, so
+	 * they need no later hint bit or vacuum work and write no WAL when the
+	 * server runs with wal_level minimal. The primary key is built after the
+	 * load and the table is then attached as the NUMERIC_STREAMS partition of
+	 * the data definition. The data definition must have no stored samples
+	 * and the connection must have no open cursors. Attaching scans the
+	 * default partition, so loads into a database with many samples in the
+	 * default partition are slower. Later saves for the data definition go
+	 * into its partition as usual.
+	 * 
+	 * @param values
+	 *            2Darray of doubles values. Each row represent samples from an
+	 *            element
+	 * @param times
+	 *            the times of the samples
+	 * @param signalPosition
+	 *            the position of samples
+	 * @param mode
+	 *            the load mode, "copy" or "staging"
+	 * @return true if the store was successful, false if otherwise
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	public boolean save(double[][] values, double[] times,
+			long signalPosition, String mode) throws MobbedException {
+		if (ManageDB.isEmpty(mode) || mode.equalsIgnoreCase("copy"))
+			return save(values, times, signalPosition);
+		if (!mode.equalsIgnoreCase("staging"))
+			throw new MobbedException("mode " + mode
+					+ " is an invalid load mode");
+		flush();
+		return stageStream(values, times, signalPosition);
+	}
+
+	/**
+	 * Sets the coalescing mode of save. When coalescing is on, consecutive
+	 * contiguous saves for the same data definition are buffered and written as
+	 * a single COPY. The buffer is written when it holds at least maxSize
+	 * samples, when a save finds the buffer older than maxAge milliseconds, when
+	 * a non-contiguous save is made, or when flush is called. The age is only
+	 * checked by save, so the buffer of a stream that stops receiving saves is
+	 * kept until flush is called or a ManageDB object on the same connection
+	 * commits or closes. Buffered samples are not seen by the retrieve
+	 * methods. Call flush before committing the transaction directly on the
+	 * connection. When auto commit is off, close writes the buffer and then
+	 * rolls back the open transaction, so commit before closing to keep the
+	 * buffered samples.
+	 * 
+	 * @param maxSize
+	 *            the maximum number of buffered samples, 0 to turn coalescing
+	 *            off
+	 * @param maxAge
+	 *            the maximum age in milliseconds of buffered samples, 0 for no
+	 *            age limit
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	public void setCoalescing(int maxSize, long maxAge) throws MobbedException {
+		if (maxSize <= 0) {
+			flush();
+			ManageDB.removeStreams(dbCon, this);
+		} else {
+			ManageDB.addStreams(dbCon, this);
+		}
+		this.maxBufferSize = Math.max(maxSize, 0);
+		this.maxBufferAge = Math.max(maxAge, 0);
+	}
+
+	/**
+	 * Buffers an array of data samples. The samples are copied to the end of
+	 * the buffer, which grows as needed.
+	 * 
+	 * @param values
+	 *            2Darray of doubles values. Each row represent samples from an
+	 *            element
+	 * @param times
+	 *            the times of the samples
+	 * @param signalPosition
+	 *            the position of samples
+	 */
+	private void bufferSamples(double[][] values, double[] times,
+			long signalPosition) {
+		int rows = values.length;
+		int cols = values[0].length;
+		int capacity = bufferTimes == null ? 0 : bufferTimes.length;
+		if (bufferSize == 0) {
+			bufferDatadefUuid = datadefUuid;
+			bufferPosition = signalPosition;
+			bufferStartTime = System.currentTimeMillis();
+			if (bufferValues == null || bufferValues.length != rows)
+				bufferValues = new double[rows][capacity];
+		}
+		if (bufferSize + cols > capacity) {
+			capacity = Math.max(bufferSize + cols, 2 * capacity);
+			bufferTimes = bufferTimes == null ? new double[capacity] : Arrays
+					.copyOf(bufferTimes, capacity);
+			for (int b = 0; b < rows; b++)
+				bufferValues[b] = Arrays.copyOf(bufferValues[b], capacity);
+		}
+		System.arraycopy(times, 0, bufferTimes, bufferSize, cols);
+		for (int b = 0; b < rows; b++)
+			System.arraycopy(values[b], 0, bufferValues[b], bufferSize, cols);
+		bufferSize += cols;
+	}
+
+	/**
+	 * Reads data samples between a given position range. Creates a separate
 	 * thread to retrieve data from database as binary. The current execution
 	 * thread reads only the required data and put them in a 2Darray.
 	 * 
@@ -288,7 +828,7 @@ public class NumericStreams {
 	 * @throws MobbedException
 	 *             if an error occurs
 	 */
-	public double[][] retrieveByPosition(int startPosition, int endPosition,
+	private double[][] readStream(int startPosition, int endPosition,
 			int elementCount) throws MobbedException {
 		double[][] signal_data = new double[endPosition - startPosition][elementCount];
 		try {
@@ -348,7 +888,33 @@ public class NumericStreams {
 	 * @throws MobbedException
 	 *             if an error occurs
 	 */
-	public boolean save(double[][] values, double[] times, long signalPosition)
+	private boolean writeStream(double[][] values, double[] times,
+			long signalPosition) throws MobbedException {
+		return copyStream("NUMERIC_STREAMS", "BINARY", values, times,
+				signalPosition);
+	}
+
+	/**
+	 * Copies an array of data samples into a table. A WriteBinaryData object
+	 * is created to run on a separate thread to write data in binary.
+	 * 
+	 * @param table
+	 *            the table the samples are copied into
+	 * @param options
+	 *            the options of the COPY statement
+	 * @param values
+	 *            2Darray of doubles values. Each row represent samples from an
+	 *            element
+	 * @param times
+	 *            the times of the samples
+	 * @param signalPosition
+	 *            the position of samples
+	 * @return true if the store was successful, false if otherwise
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	private boolean copyStream(String table, String options,
+			double[][] values, double[] times, long signalPosition)
 			throws MobbedException {
 		boolean success = false;
 		try {
@@ -366,10 +932,9 @@ public class NumericStreams {
 			// DataInputStream and
 			// connect to the table
 			DataInputStream diStream = new DataInputStream(pin);
-			copyMgr.copyIn(
-					"COPY NUMERIC_STREAMS(NUMERIC_STREAM_DATADEF_UUID, "
-							+ "NUMERIC_STREAM_RECORD_POSITION, NUMERIC_STREAM_RECORD_TIME, NUMERIC_STREAM) FROM STDIN WITH BINARY",
-					diStream);
+			copyMgr.copyIn("COPY " + table + "(NUMERIC_STREAM_DATADEF_UUID, "
+					+ "NUMERIC_STREAM_RECORD_POSITION, NUMERIC_STREAM_RECORD_TIME, NUMERIC_STREAM)"
+					+ " FROM STDIN WITH " + options, diStream);
 			diStream.close();
 			pin.close();
 			success = true;
@@ -379,6 +944,70 @@ public class NumericStreams {
 		return success;
 	}
 
+	/**
+	 * Saves an array of data samples into a new partition of NUMERIC_STREAMS.
+	 * The transaction is committed if auto commit mode is on.
+	 * 
+	 * @param values
+	 *            2Darray of doubles values. Each row represent samples from an
+	 *            element
+	 * @param times
+	 *            the times of the samples
+	 * @param signalPosition
+	 *            the position of samples
+	 * @return true if the store was successful, false if otherwise
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	private boolean stageStream(double[][] values, double[] times,
+			long signalPosition) throws MobbedException {
+		String partition = "NUMERIC_STREAMS_"
+				+ datadefUuid.toString().replace("-", "");
+		boolean autoCommit = false;
+		try {
+			autoCommit = dbCon.getAutoCommit();
+			if (autoCommit)
+				dbCon.setAutoCommit(false);
+			Statement stmt = dbCon.createStatement();
+			try {
+				stmt.execute("CREATE TABLE " + partition
+						+ " (LIKE NUMERIC_STREAMS INCLUDING DEFAULTS"
+						+ " INCLUDING CONSTRAINTS)");
+				copyStream(partition, "(FORMAT BINARY, FREEZE)", values,
+						times, signalPosition);
+				stmt.execute("ALTER TABLE " + partition
+						+ " ADD PRIMARY KEY (NUMERIC_STREAM_DATADEF_UUID,"
+						+ " NUMERIC_STREAM_RECORD_POSITION)");
+				stmt.execute("ALTER TABLE NUMERIC_STREAMS ATTACH PARTITION "
+						+ partition + " FOR VALUES IN ('" + datadefUuid + "')");
+			} finally {
+				stmt.close();
+			}
+			if (autoCommit)
+				dbCon.commit();
+		} catch (Exception ex) {
+			try {
+				if (autoCommit)
+					dbCon.rollback();
+			} catch (SQLException ex2) {
+				throw new MobbedException(
+						"Could not roll back the staged numeric stream\n"
+								+ ex2.getMessage());
+			}
+			throw new MobbedException(
+					"Could not save numeric stream through staging table\n"
+							+ ex.getMessage());
+		} finally {
+			try {
+				if (autoCommit)
+					dbCon.setAutoCommit(true);
+			} catch (SQLException ex) {
+				// the connection is unusable and the error is reported above
+			}
+		}
+		return true;
+	}
+
 	/**
 	 * Creates a template row for NUMERIC_DATA table. All required binary flags,
 	 * dimensions, and size of data in bytes is added to the template. Only the
@@ -429,6 +1058,137 @@ public class NumericStreams {
 		return template;
 	}
 
+	/**
+	 * Computes the common time base used by retrieveByTime. The times start at
+	 * startTime and are spaced 1/samplingRate apart up to endTime.
+	 * 
+	 * @param startTime
+	 *            the first time of the common time base
+	 * @param endTime
+	 *            the last time of the common time base
+	 * @param samplingRate
+	 *            the sampling rate of the common time base
+	 * @return the times of the common time base
+	 */
+	public static double[] getCommonTimes(double startTime, double endTime,
+			double samplingRate) {
+		int numTimes = (int) Math.floor((endTime - startTime) * samplingRate
+				+ 1e-9) + 1;
+		if (numTimes < 0)
+			numTimes = 0;
+		double[] commonTimes = new double[numTimes];
+		for (int i = 0; i < numTimes; i++)
+			commonTimes[i] = startTime + i / samplingRate;
+		return commonTimes;
+	}
+
+	/**
+	 * Retrieves several numeric streams over one time range and resamples them
+	 * to a common time base. The samples of all streams are read with a single
+	 * query and each stream is then linearly interpolated on its own thread.
+	 * The common time base is given by getCommonTimes.
+	 * 
+	 * @param dbCon
+	 *            a connection to the database
+	 * @param datadefUuids
+	 *            the UUIDs of the numeric stream data definitions, each given
+	 *            at most once
+	 * @param startTime
+	 *            start time for retrieval
+	 * @param endTime
+	 *            end time for retrieval
+	 * @param samplingRate
+	 *            the sampling rate of the common time base
+	 * @return A 3Darray of double values. The first index is the stream, in
+	 *         the order of datadefUuids. Each stream is a 2Darray where each
+	 *         row represents a single common time point and each value is a
+	 *         sample from each element. Time points outside of the stored
+	 *         samples of a stream are NaN.
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	public static double[][][] retrieveByTime(Connection dbCon,
+			String[] datadefUuids, double startTime, double endTime,
+			double samplingRate) throws MobbedException {
+		if (samplingRate <= 0)
+			throw new MobbedException("The sampling rate must be positive");
+		int numStreams = datadefUuids.length;
+		HashMap<UUID, Integer> streamIndexes = new HashMap<UUID, Integer>();
+		double[][] streamTimes = new double[numStreams][];
+		int[] sampleCounts = new int[numStreams];
+		ArrayList<ArrayList<double[]>> streamValues = new ArrayList<ArrayList<double[]>>();
+		int[] elementCounts = new int[numStreams];
+		for (int i = 0; i < numStreams; i++) {
+			UUID uuid = UUID.fromString(datadefUuids[i]);
+			if (streamIndexes.put(uuid, i) != null)
+				throw new MobbedException("The numeric stream " + uuid
+						+ " is given more than once");
+			streamTimes[i] = new double[16];
+			streamValues.add(new ArrayList<double[]>());
+		}
+		double[][][] signalData = new double[numStreams][][];
+		if (numStreams == 0)
+			return signalData;
+		String query = "SELECT NUMERIC_STREAM_DATADEF_UUID, NUMERIC_STREAM_RECORD_TIME,"
+				+ " NUMERIC_STREAM FROM NUMERIC_STREAMS"
+				+ " WHERE NUMERIC_STREAM_DATADEF_UUID = ANY(?::uuid[])"
+				+ " AND NUMERIC_STREAM_RECORD_TIME BETWEEN ? AND ?"
+				+ " ORDER BY NUMERIC_STREAM_DATADEF_UUID, NUMERIC_STREAM_RECORD_TIME";
+		try {
+			PreparedStatement pstmt = dbCon.prepareStatement(query);
+			try {
+				pstmt.setArray(1, dbCon.createArrayOf("varchar", datadefUuids));
+				pstmt.setDouble(2, startTime);
+				pstmt.setDouble(3, endTime);
+				pstmt.setFetchSize(10000);
+				ResultSet rs = pstmt.executeQuery();
+				while (rs.next()) {
+					int index = streamIndexes.get(UUID.fromString(rs
+							.getString(1)));
+					double time = rs.getDouble(2);
+					Array array = rs.getArray(3);
+					Object[] elements = array == null ? new Object[0]
+							: (Object[]) array.getArray();
+					double[] sample = new double[elements.length];
+					for (int i = 0; i < elements.length; i++)
+						sample[i] = elements[i] == null ? Double.NaN
+								: ((Number) elements[i]).doubleValue();
+					elementCounts[index] = Math.max(elementCounts[index],
+							sample.length);
+					if (sampleCounts[index] == streamTimes[index].length)
+						streamTimes[index] = Arrays.copyOf(streamTimes[index],
+								streamTimes[index].length * 2);
+					streamTimes[index][sampleCounts[index]++] = time;
+					streamValues.get(index).add(sample);
+				}
+				rs.close();
+			} finally {
+				pstmt.close();
+			}
+		} catch (SQLException ex) {
+			throw new MobbedException("Could not retrieve numeric streams\n"
+					+ ex.getMessage());
+		}
+		double[] commonTimes = getCommonTimes(startTime, endTime, samplingRate);
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+				numStreams, Runtime.getRuntime().availableProcessors()));
+		try {
+			ArrayList<Future<double[][]>> futures = new ArrayList<Future<double[][]>>();
+			for (int i = 0; i < numStreams; i++)
+				futures.add(executor.submit(new ResampleData(
+						streamTimes[i], sampleCounts[i], streamValues.get(i),
+						elementCounts[i], commonTimes)));
+			for (int i = 0; i < numStreams; i++)
+				signalData[i] = futures.get(i).get();
+		} catch (Exception ex) {
+			throw new MobbedException("Could not resample numeric streams\n"
+					+ ex.getMessage());
+		} finally {
+			executor.shutdown();
+		}
+		return signalData;
+	}
+
 	/**
 	 * Finds the length of each array in the numeric stream. The length is equal
 	 * to the number of elements in the stream.
@@ -458,4 +1218,16 @@ public class NumericStreams {
 		}
 		return elementCount;
 	}
+
+	/**
+	 * Gets the number of retrieveByPosition calls that were served by a read
+	 * already fetching on the same connection instead of their own COPY.
+	 * 
+	 * @return the number of shared reads
+	 */
+	public static long getSharedReads() {
+		synchronized (inFlightReads) {
+			return sharedReads;
+		}
+	}
 }
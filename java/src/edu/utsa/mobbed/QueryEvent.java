@@ -0,0 +1,169 @@
+package edu.utsa.mobbed;
+
+/**
+ * Timings and counts of a statement executed by a ManageDB object. The SQL of
+ * the event is the parameterized statement, so statements that differ only in
+ * their values have the same SQL. The event also measures the statement: it is
+ * created before the statement is prepared and marked as each phase ends.
+ * 
+ * @author Arif Hossain, Jeremy Cockfield, Kay Robbins
+ * 
+ */
+public class QueryEvent {
+
+	/**
+	 * The number of rows in the batch, 1 if the statement is not batched
+	 */
+	private int batchSize = 1;
+	/**
+	 * The number of values bound to each execution of the statement
+	 */
+	private int bindCount;
+	/**
+	 * The time the statement was executed
+	 */
+	private long executed;
+	/**
+	 * The time the rows of the statement were fetched
+	 */
+	private long fetched;
+	/**
+	 * The time the statement was prepared and its values set
+	 */
+	private long prepared;
+	/**
+	 * The number of rows returned or affected by the statement
+	 */
+	private long rowCount;
+	/**
+	 * The parameterized SQL of the statement
+	 */
+	private String sql;
+	/**
+	 * The time the event was created
+	 */
+	private long started;
+
+	/**
+	 * Creates a QueryEvent object and starts measuring the statement.
+	 */
+	QueryEvent() {
+		started = System.nanoTime();
+		prepared = started;
+		executed = started;
+		fetched = started;
+	}
+
+	/**
+	 * Gets the number of rows in the batch.
+	 * 
+	 * @return the batch size, 1 if the statement is not batched
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Gets the number of values bound to each execution of the statement.
+	 * 
+	 * @return the number of bound values
+	 */
+	public int getBindCount() {
+		return bindCount;
+	}
+
+	/**
+	 * Gets the time from the start of the event until the rows were fetched.
+	 * 
+	 * @return the elapsed time in nanoseconds
+	 */
+	public long getElapsedNanos() {
+		return fetched - started;
+	}
+
+	/**
+	 * Gets the time it took to execute the statement.
+	 * 
+	 * @return the execute time in nanoseconds
+	 */
+	public long getExecuteNanos() {
+		return executed - prepared;
+	}
+
+	/**
+	 * Gets the time it took to fetch the rows of the statement.
+	 * 
+	 * @return the fetch time in nanoseconds
+	 */
+	public long getFetchNanos() {
+		return fetched - executed;
+	}
+
+	/**
+	 * Gets the time it took to prepare the statement and set its values.
+	 * 
+	 * @return the prepare time in nanoseconds
+	 */
+	public long getPrepareNanos() {
+		return prepared - started;
+	}
+
+	/**
+	 * Gets the number of rows returned or affected by the statement.
+	 * 
+	 * @return the number of rows
+	 */
+	public long getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * Gets the parameterized SQL of the statement.
+	 * 
+	 * @return the SQL of the statement
+	 */
+	public String getSql() {
+		return sql;
+	}
+
+	/**
+	 * Marks the end of the execution of the statement.
+	 */
+	void executed() {
+		executed = System.nanoTime();
+		fetched = executed;
+	}
+
+	/**
+	 * Marks the end of the fetch of the rows of the statement.
+	 * 
+	 * @param rowCount
+	 *            the number of rows returned or affected by the statement
+	 */
+	void fetched(long rowCount) {
+		this.rowCount = rowCount;
+		fetched = System.nanoTime();
+	}
+
+	/**
+	 * Marks the end of the preparation of the statement.
+	 * 
+	 * @param sql
+	 *            the parameterized SQL of the statement
+	 * @param batchSize
+	 *            the number of rows in the batch
+	 */
+	void prepared(String sql, int batchSize) {
+		this.sql = sql;
+		this.batchSize = batchSize;
+		bindCount = 0;
+		for (int i = 0; i < sql.length(); i++) {
+			if (sql.charAt(i) == '?')
+				bindCount++;
+		}
+		prepared = System.nanoTime();
+		executed = prepared;
+		fetched = prepared;
+	}
+
+}
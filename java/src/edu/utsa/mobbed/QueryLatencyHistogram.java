@@ -0,0 +1,196 @@
+package edu.utsa.mobbed;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Query listener that aggregates statement latencies per SQL shape. Each shape
+ * has a histogram with power of two buckets in microseconds, so percentiles
+ * are accurate to a factor of two while memory stays fixed per shape.
+ * 
+ * @author Arif Hossain, Jeremy Cockfield, Kay Robbins
+ * 
+ */
+public class QueryLatencyHistogram implements QueryListener {
+
+	/**
+	 * The latency statistics of each SQL shape
+	 */
+	private HashMap<String, ShapeStats> shapes = new HashMap<String, ShapeStats>();
+	/**
+	 * The number of histogram buckets, the last covers all longer latencies
+	 */
+	private static final int bucketCount = 40;
+
+	/**
+	 * Gets the histogram of a SQL shape. Bucket i counts the statements that
+	 * took less than 2^i microseconds and at least 2^(i-1) microseconds.
+	 * 
+	 * @param sql
+	 *            the SQL shape
+	 * @return the bucket counts, null if the shape was not executed
+	 */
+	public synchronized long[] getBuckets(String sql) {
+		ShapeStats stats = shapes.get(sql);
+		return stats == null ? null : stats.buckets.clone();
+	}
+
+	/**
+	 * Gets the number of times a SQL shape was executed.
+	 * 
+	 * @param sql
+	 *            the SQL shape
+	 * @return the number of executions
+	 */
+	public synchronized long getCount(String sql) {
+		ShapeStats stats = shapes.get(sql);
+		return stats == null ? 0 : stats.count;
+	}
+
+	/**
+	 * Gets the longest latency of a SQL shape.
+	 * 
+	 * @param sql
+	 *            the SQL shape
+	 * @return the longest latency in nanoseconds
+	 */
+	public synchronized long getMaxNanos(String sql) {
+		ShapeStats stats = shapes.get(sql);
+		return stats == null ? 0 : stats.maxNanos;
+	}
+
+	/**
+	 * Gets an upper bound of a latency percentile of a SQL shape.
+	 * 
+	 * @param sql
+	 *            the SQL shape
+	 * @param percentile
+	 *            the percentile between 0 and 100
+	 * @return the upper bound of the bucket that contains the percentile in
+	 *         nanoseconds, 0 if the shape was not executed
+	 */
+	public synchronized long getPercentileNanos(String sql, double percentile) {
+		ShapeStats stats = shapes.get(sql);
+		if (stats == null)
+			return 0;
+		long rank = (long) Math.ceil(stats.count * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < bucketCount - 1; i++) {
+			seen += stats.buckets[i];
+			if (seen >= rank)
+				return Math.min((1L << i) * 1000, stats.maxNanos);
+		}
+		return stats.maxNanos;
+	}
+
+	/**
+	 * Gets the SQL shapes that were executed.
+	 * 
+	 * @return the SQL shapes
+	 */
+	public synchronized String[] getShapes() {
+		return shapes.keySet().toArray(new String[shapes.size()]);
+	}
+
+	/**
+	 * Gets the total latency of a SQL shape.
+	 * 
+	 * @param sql
+	 *            the SQL shape
+	 * @return the total latency in nanoseconds
+	 */
+	public synchronized long getTotalNanos(String sql) {
+		ShapeStats stats = shapes.get(sql);
+		return stats == null ? 0 : stats.totalNanos;
+	}
+
+	/**
+	 * Adds the latency of an executed statement to the histogram of its shape.
+	 * 
+	 * @param event
+	 *            the timings and counts of the statement
+	 */
+	public synchronized void queryExecuted(QueryEvent event) {
+		ShapeStats stats = shapes.get(event.getSql());
+		if (stats == null) {
+			stats = new ShapeStats();
+			shapes.put(event.getSql(), stats);
+		}
+		long nanos = event.getElapsedNanos();
+		long micros = nanos / 1000;
+		int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros),
+				bucketCount - 1);
+		stats.buckets[bucket]++;
+		stats.count++;
+		stats.rows += event.getRowCount();
+		stats.totalNanos += nanos;
+		stats.maxNanos = Math.max(stats.maxNanos, nanos);
+	}
+
+	/**
+	 * Creates a report of the SQL shapes ordered by total latency, with the
+	 * count, mean, median, 99th percentile and longest latency of each shape
+	 * in milliseconds.
+	 * 
+	 * @return the report of the SQL shapes
+	 */
+	public synchronized String report() {
+		ArrayList<String> sorted = new ArrayList<String>(shapes.keySet());
+		Collections.sort(sorted, new Comparator<String>() {
+			public int compare(String a, String b) {
+				long ta = shapes.get(a).totalNanos;
+				long tb = shapes.get(b).totalNanos;
+				return ta < tb ? 1 : ta > tb ? -1 : 0;
+			}
+		});
+		StringBuilder report = new StringBuilder();
+		for (String sql : sorted) {
+			ShapeStats stats = shapes.get(sql);
+			report.append(String.format(
+					"count=%d rows=%d total=%.3f mean=%.3f p50<=%.3f"
+							+ " p99<=%.3f max=%.3f %s%n", stats.count,
+					stats.rows, stats.totalNanos / 1e6, stats.totalNanos
+							/ 1e6 / stats.count,
+					getPercentileNanos(sql, 50) / 1e6,
+					getPercentileNanos(sql, 99) / 1e6, stats.maxNanos / 1e6,
+					sql));
+		}
+		return report.toString();
+	}
+
+	/**
+	 * Discards the statistics of all SQL shapes.
+	 */
+	public synchronized void reset() {
+		shapes.clear();
+	}
+
+	/**
+	 * The latency statistics of a SQL shape.
+	 */
+	private static class ShapeStats {
+		/**
+		 * The number of executions in each latency bucket
+		 */
+		private long[] buckets = new long[bucketCount];
+		/**
+		 * The number of executions
+		 */
+		private long count;
+		/**
+		 * The longest latency in nanoseconds
+		 */
+		private long maxNanos;
+		/**
+		 * The number of rows returned or affected
+		 */
+		private long rows;
+		/**
+		 * The total latency in nanoseconds
+		 */
+		private long totalNanos;
+	}
+
+}
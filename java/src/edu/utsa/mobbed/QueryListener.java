@@ -0,0 +1,21 @@
+package edu.utsa.mobbed;
+
+/**
+ * Receives an event for each statement a ManageDB object executes. Listeners
+ * are called on the thread that executed the statement, so they should return
+ * quickly.
+ * 
+ * @author Arif Hossain, Jeremy Cockfield, Kay Robbins
+ * 
+ */
+public interface QueryListener {
+
+	/**
+	 * Called after a statement has been executed and its rows fetched.
+	 * 
+	 * @param event
+	 *            the timings and counts of the statement
+	 */
+	public void queryExecuted(QueryEvent event);
+
+}
@@ -0,0 +1,600 @@
+package edu.utsa.mobbed;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Schema metadata of a database shared by all ManageDB objects connected to
+ * it. A snapshot is loaded once per connection URL and is not modified after
+ * it is loaded, and its getters return read-only views and copies, so callers
+ * cannot change the shared metadata. A shared snapshot is reused without querying the catalog until
+ * the check interval elapses, after which a single query compares the schema
+ * stamp and the snapshot is reloaded only if the schema has changed. If a
+ * cache directory is set, snapshots are also stored on disk, so a new process
+ * only needs the stamp query to validate the cached snapshot. Cached
+ * snapshots are stored as plain strings and counts, so reading a cache file
+ * never instantiates classes named by the file.
+ * 
+ * @author Arif Hossain, Jeremy Cockfield, Kay Robbins
+ * 
+ */
+public class SchemaSnapshot {
+
+	/**
+	 * The time the stamp of the snapshot was last compared to the database
+	 */
+	private long checked;
+	/**
+	 * A hashmap that contains the column names of each database table
+	 */
+	private HashMap<String, String[]> columnMap;
+	/**
+	 * A hashmap that contains the default column values of each database table
+	 */
+	private HashMap<String, String> defaultValues;
+	/**
+	 * A hashmap that contains the element types of the array columns
+	 */
+	private HashMap<String, String> elementTypes;
+	/**
+	 * A hashmap that contains the keys of each database table
+	 */
+	private HashMap<String, String[]> keyMap;
+	/**
+	 * A hash of the schema the snapshot was loaded from
+	 */
+	private String stamp;
+	/**
+	 * A hashmap that contains the column types of each database table
+	 */
+	private HashMap<String, String> typeMap;
+	/**
+	 * The directory snapshots are stored in, null if they are not stored
+	 */
+	private static File cacheDirectory;
+	/**
+	 * The version of the cache file format, a cache file with another version
+	 * is ignored
+	 */
+	private static final int cacheFormat = 2;
+	/**
+	 * The number of snapshots read from the cache directory
+	 */
+	private static long cacheHits;
+	/**
+	 * The number of snapshots loaded from the database catalog
+	 */
+	private static long catalogLoads;
+	/**
+	 * The milliseconds a shared snapshot is used before its stamp is checked
+	 */
+	private static long checkInterval = 60000;
+	/**
+	 * A query that retrieves the columns of every table in order, with their
+	 * defaults, types, whether they are part of the primary key and their
+	 * underlying type names. Partitions
+	 * are left out, since they are reached through their parent table.
+	 */
+	private static final String schemaQuery = "SELECT c.table_name, c.column_name, c.column_default, c.data_type,"
+			+ " EXISTS (SELECT 1 FROM pg_index, pg_attribute"
+			+ " WHERE pg_index.indrelid = quote_ident(c.table_name)::regclass AND"
+			+ " pg_attribute.attrelid = pg_index.indrelid AND"
+			+ " pg_attribute.attnum = any(pg_index.indkey) AND"
+			+ " pg_attribute.attname = c.column_name AND indisprimary), c.udt_name"
+			+ " FROM information_schema.columns c, information_schema.tables t"
+			+ " WHERE c.table_schema = 'public' AND t.table_schema = 'public' AND"
+			+ " t.table_name = c.table_name AND NOT EXISTS (SELECT 1 FROM pg_inherits"
+			+ " WHERE inhrelid = quote_ident(c.table_name)::regclass)"
+			+ " ORDER BY c.table_name, c.ordinal_position";
+	/**
+	 * The shared snapshots keyed by connection URL
+	 */
+	private static HashMap<String, SchemaSnapshot> snapshots = new HashMap<String, SchemaSnapshot>();
+	/**
+	 * A query that hashes the names, types, defaults and primary keys of the
+	 * columns of every table, so that any DDL change gives a new stamp
+	 */
+	private static final String stampQuery = "SELECT md5(COALESCE(string_agg(c.relname || '.' || a.attname"
+			+ " || ':' || a.atttypid || ':' || a.attnum"
+			+ " || ':' || COALESCE(pg_get_expr(d.adbin, d.adrelid), '')"
+			+ " || ':' || EXISTS (SELECT 1 FROM pg_index i WHERE i.indrelid = c.oid"
+			+ " AND i.indisprimary AND a.attnum = any(i.indkey))::text,"
+			+ " ',' ORDER BY c.relname, a.attnum), ''))"
+			+ " FROM pg_class c JOIN pg_namespace n ON n.oid = c.relnamespace"
+			+ " JOIN pg_attribute a ON a.attrelid = c.oid"
+			+ " LEFT JOIN pg_attrdef d ON d.adrelid = c.oid AND d.adnum = a.attnum"
+			+ " WHERE n.nspname = 'public' AND c.relkind IN ('r', 'v', 'm', 'f', 'p')"
+			+ " AND NOT c.relispartition AND a.attnum > 0 AND NOT a.attisdropped";
+
+	/**
+	 * Creates a SchemaSnapshot object.
+	 * 
+	 * @param columnMap
+	 *            a hashmap that contains the column names of each table
+	 * @param defaultValues
+	 *            a hashmap that contains the default column values
+	 * @param elementTypes
+	 *            a hashmap that contains the element types of the array
+	 *            columns
+	 * @param keyMap
+	 *            a hashmap that contains the keys of each table
+	 * @param typeMap
+	 *            a hashmap that contains the column types
+	 * @param stamp
+	 *            a hash of the schema the snapshot was loaded from
+	 */
+	SchemaSnapshot(HashMap<String, String[]> columnMap,
+			HashMap<String, String> defaultValues,
+			HashMap<String, String> elementTypes,
+			HashMap<String, String[]> keyMap, HashMap<String, String> typeMap,
+			String stamp) {
+		this.columnMap = columnMap;
+		this.defaultValues = defaultValues;
+		this.elementTypes = elementTypes;
+		this.keyMap = keyMap;
+		this.typeMap = typeMap;
+		this.stamp = stamp;
+	}
+
+	/**
+	 * Gets a read-only map that contains the column names of each database
+	 * table. The arrays are copies, so changing them does not affect the
+	 * snapshot.
+	 * 
+	 * @return the column names of each database table
+	 */
+	public Map<String, String[]> getColumnMap() {
+		return copyArrays(columnMap);
+	}
+
+	/**
+	 * Gets a read-only map that contains the default column values.
+	 * 
+	 * @return the default column values
+	 */
+	public Map<String, String> getDefaultValues() {
+		return Collections.unmodifiableMap(defaultValues);
+	}
+
+	/**
+	 * Gets a read-only map that contains the element types of the array
+	 * columns, such as float8 for a double precision[] column.
+	 * 
+	 * @return the element types of the array columns
+	 */
+	public Map<String, String> getElementTypes() {
+		return Collections.unmodifiableMap(elementTypes);
+	}
+
+	/**
+	 * Gets a read-only map that contains the keys of each database table. The
+	 * arrays are copies, so changing them does not affect the snapshot.
+	 * 
+	 * @return the keys of each database table
+	 */
+	public Map<String, String[]> getKeyMap() {
+		return copyArrays(keyMap);
+	}
+
+	/**
+	 * Gets a hash of the schema the snapshot was loaded from.
+	 * 
+	 * @return the stamp of the snapshot
+	 */
+	public String getStamp() {
+		return stamp;
+	}
+
+	/**
+	 * Gets a read-only map that contains the column types.
+	 * 
+	 * @return the column types
+	 */
+	public Map<String, String> getTypeMap() {
+		return Collections.unmodifiableMap(typeMap);
+	}
+
+	/**
+	 * Discards all shared snapshots, so that the next ManageDB object loads
+	 * the schema again.
+	 */
+	public static synchronized void clear() {
+		snapshots.clear();
+	}
+
+	/**
+	 * Gets the shared snapshot of the database a connection points to. The
+	 * snapshot is loaded if there is none or if the schema stamp has changed
+	 * since it was loaded.
+	 * 
+	 * @param dbCon
+	 *            a connection to the database
+	 * @return the schema snapshot of the database
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	public static synchronized SchemaSnapshot get(Connection dbCon)
+			throws MobbedException {
+		try {
+			String url = dbCon.getMetaData().getURL();
+			SchemaSnapshot snapshot = snapshots.get(url);
+			long now = System.currentTimeMillis();
+			if (snapshot != null && now - snapshot.checked < checkInterval)
+				return snapshot;
+			String stamp = retrieveStamp(dbCon);
+			if (snapshot == null || !snapshot.stamp.equals(stamp)) {
+				snapshot = readCache(url);
+				if (snapshot == null || !snapshot.stamp.equals(stamp)) {
+					snapshot = load(dbCon, stamp);
+					catalogLoads++;
+					writeCache(url, snapshot);
+				} else
+					cacheHits++;
+				snapshots.put(url, snapshot);
+			}
+			snapshot.checked = now;
+			return snapshot;
+		} catch (SQLException ex) {
+			throw new MobbedException("Could not retrieve the schema\n"
+					+ ex.getMessage());
+		}
+	}
+
+	/**
+	 * Gets the number of snapshots read from the cache directory instead of
+	 * being loaded from the database.
+	 * 
+	 * @return the number of snapshots read from the cache directory
+	 */
+	public static synchronized long getCacheHits() {
+		return cacheHits;
+	}
+
+	/**
+	 * Gets the number of snapshots loaded from the database catalog.
+	 * 
+	 * @return the number of snapshots loaded from the database catalog
+	 */
+	public static synchronized long getCatalogLoads() {
+		return catalogLoads;
+	}
+
+	/**
+	 * Loads the schema of the database a connection points to and replaces
+	 * its shared snapshot.
+	 * 
+	 * @param dbCon
+	 *            a connection to the database
+	 * @return the schema snapshot of the database
+	 * @throws MobbedException
+	 *             if an error occurs
+	 */
+	public static synchronized SchemaSnapshot refresh(Connection dbCon)
+			throws MobbedException {
+		try {
+			snapshots.remove(dbCon.getMetaData().getURL());
+		} catch (SQLException ex) {
+			throw new MobbedException("Could not retrieve the schema\n"
+					+ ex.getMessage());
+		}
+		return get(dbCon);
+	}
+
+	/**
+	 * Sets the directory snapshots are stored in. A snapshot read from the
+	 * directory is only used if its stamp matches the database.
+	 * 
+	 * @param directory
+	 *            the directory snapshots are stored in, null to not store them
+	 */
+	public static synchronized void setCacheDirectory(String directory) {
+		if (directory == null) {
+			cacheDirectory = null;
+			return;
+		}
+		cacheDirectory = new File(directory);
+		cacheDirectory.mkdirs();
+	}
+
+	/**
+	 * Sets the milliseconds a shared snapshot is used before its stamp is
+	 * compared to the database again.
+	 * 
+	 * @param checkInterval
+	 *            the milliseconds between checks, 0 to check every time
+	 */
+	public static synchronized void setCheckInterval(long checkInterval) {
+		SchemaSnapshot.checkInterval = Math.max(checkInterval, 0);
+	}
+
+	/**
+	 * Loads the schema of a database with a single query.
+	 * 
+	 * @param dbCon
+	 *            a connection to the database
+	 * @param stamp
+	 *            the stamp of the schema
+	 * @return a new schema snapshot
+	 * @throws SQLException
+	 *             if an error occurs
+	 */
+	static SchemaSnapshot load(Connection dbCon, String stamp)
+			throws SQLException {
+		HashMap<String, String[]> columnMap = new HashMap<String, String[]>();
+		HashMap<String, String> typeMap = new HashMap<String, String>();
+		HashMap<String, String> defaultValues = new HashMap<String, String>();
+		HashMap<String, String> elementTypes = new HashMap<String, String>();
+		HashMap<String, String[]> keyMap = new HashMap<String, String[]>();
+		HashMap<String, ArrayList<String>> columnLists = new HashMap<String, ArrayList<String>>();
+		HashMap<String, ArrayList<String>> keyLists = new HashMap<String, ArrayList<String>>();
+		Statement schemaStatement = dbCon.createStatement();
+		try {
+			ResultSet rs = schemaStatement.executeQuery(schemaQuery);
+			try {
+				while (rs.next()) {
+					String table = rs.getString(1);
+					String columnName = rs.getString(2);
+					String columnDefault = rs.getString(3);
+					if (columnDefault != null)
+						columnDefault = columnDefault.split(":")[0]
+								.replaceAll("'", "");
+					defaultValues.put(columnName, columnDefault);
+					typeMap.put(columnName, rs.getString(4));
+					if (rs.getString(4).equalsIgnoreCase("ARRAY"))
+						elementTypes.put(columnName,
+								rs.getString(6).substring(1));
+					if (!columnLists.containsKey(table)) {
+						columnLists.put(table, new ArrayList<String>());
+						keyLists.put(table, new ArrayList<String>());
+					}
+					columnLists.get(table).add(columnName);
+					if (rs.getBoolean(5))
+						keyLists.get(table).add(columnName);
+				}
+			} finally {
+				rs.close();
+			}
+		} finally {
+			schemaStatement.close();
+		}
+		for (String table : columnLists.keySet()) {
+			ArrayList<String> columns = columnLists.get(table);
+			ArrayList<String> keys = keyLists.get(table);
+			columnMap.put(table, columns.toArray(new String[columns.size()]));
+			keyMap.put(table, keys.toArray(new String[keys.size()]));
+		}
+		return new SchemaSnapshot(columnMap, defaultValues, elementTypes,
+				keyMap, typeMap, stamp);
+	}
+
+	/**
+	 * Copies a map of arrays into a read-only map of copied arrays.
+	 * 
+	 * @param map
+	 *            the map to copy
+	 * @return a read-only copy of the map
+	 */
+	private static Map<String, String[]> copyArrays(
+			HashMap<String, String[]> map) {
+		HashMap<String, String[]> copy = new HashMap<String, String[]>();
+		for (Map.Entry<String, String[]> entry : map.entrySet())
+			copy.put(entry.getKey(), entry.getValue().clone());
+		return Collections.unmodifiableMap(copy);
+	}
+
+	/**
+	 * Gets the file a snapshot of a database is stored in.
+	 * 
+	 * @param url
+	 *            the connection URL of the database
+	 * @return the cache file of the database
+	 */
+	private static File getCacheFile(String url) {
+		return new File(cacheDirectory, "schema-"
+				+ Integer.toHexString(url.hashCode()) + ".cache");
+	}
+
+	/**
+	 * Reads a map of string arrays from a cache file.
+	 * 
+	 * @param in
+	 *            the stream the cache file is read from
+	 * @return the map that was read
+	 * @throws IOException
+	 *             if the map could not be read
+	 */
+	private static HashMap<String, String[]> readArrayMap(DataInputStream in)
+			throws IOException {
+		int numEntries = in.readInt();
+		HashMap<String, String[]> map = new HashMap<String, String[]>();
+		for (int i = 0; i < numEntries; i++) {
+			String key = in.readUTF();
+			String[] value = new String[in.readInt()];
+			for (int j = 0; j < value.length; j++)
+				value[j] = in.readUTF();
+			map.put(key, value);
+		}
+		return map;
+	}
+
+	/**
+	 * Reads the stored snapshot of a database.
+	 * 
+	 * @param url
+	 *            the connection URL of the database
+	 * @return the stored snapshot, null if there is none or it is unreadable
+	 */
+	private static SchemaSnapshot readCache(String url) {
+		if (cacheDirectory == null)
+			return null;
+		File file = getCacheFile(url);
+		if (!file.isFile())
+			return null;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			try {
+				if (in.readInt() != cacheFormat || !url.equals(in.readUTF()))
+					return null;
+				String stamp = in.readUTF();
+				HashMap<String, String[]> columnMap = readArrayMap(in);
+				HashMap<String, String> defaultValues = readStringMap(in);
+				HashMap<String, String> elementTypes = readStringMap(in);
+				HashMap<String, String[]> keyMap = readArrayMap(in);
+				HashMap<String, String> typeMap = readStringMap(in);
+				return new SchemaSnapshot(columnMap, defaultValues,
+						elementTypes, keyMap, typeMap, stamp);
+			} finally {
+				in.close();
+			}
+		} catch (Exception ex) {
+			// an unreadable cache is replaced by a newly loaded snapshot
+			return null;
+		}
+	}
+
+	/**
+	 * Reads a map of strings from a cache file. Each value is preceded by a
+	 * flag that is false for a null value.
+	 * 
+	 * @param in
+	 *            the stream the cache file is read from
+	 * @return the map that was read
+	 * @throws IOException
+	 *             if the map could not be read
+	 */
+	private static HashMap<String, String> readStringMap(DataInputStream in)
+			throws IOException {
+		int numEntries = in.readInt();
+		HashMap<String, String> map = new HashMap<String, String>();
+		for (int i = 0; i < numEntries; i++) {
+			String key = in.readUTF();
+			map.put(key, in.readBoolean() ? in.readUTF() : null);
+		}
+		return map;
+	}
+
+	/**
+	 * Retrieves the stamp of the schema of a database.
+	 * 
+	 * @param dbCon
+	 *            a connection to the database
+	 * @return a hash of the schema
+	 * @throws SQLException
+	 *             if an error occurs
+	 */
+	static String retrieveStamp(Connection dbCon) throws SQLException {
+		Statement stmt = dbCon.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery(stampQuery);
+			try {
+				rs.next();
+				return rs.getString(1);
+			} finally {
+				rs.close();
+			}
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Writes a map of string arrays to a cache file.
+	 * 
+	 * @param out
+	 *            the stream the cache file is written to
+	 * @param map
+	 *            the map to write
+	 * @throws IOException
+	 *             if the map could not be written
+	 */
+	private static void writeArrayMap(DataOutputStream out,
+			HashMap<String, String[]> map) throws IOException {
+		out.writeInt(map.size());
+		for (Map.Entry<String, String[]> entry : map.entrySet()) {
+			out.writeUTF(entry.getKey());
+			out.writeInt(entry.getValue().length);
+			for (String value : entry.getValue())
+				out.writeUTF(value);
+		}
+	}
+
+	/**
+	 * Stores the snapshot of a database. The snapshot is written to a uniquely
+	 * named temporary file that then replaces the cache file, so readers never
+	 * see a partly written cache and concurrent writers do not share a file.
+	 * 
+	 * @param url
+	 *            the connection URL of the database
+	 * @param snapshot
+	 *            the snapshot of the database
+	 */
+	private static void writeCache(String url, SchemaSnapshot snapshot) {
+		if (cacheDirectory == null)
+			return;
+		File file = getCacheFile(url);
+		File temp = null;
+		try {
+			temp = File.createTempFile("schema-", ".tmp", cacheDirectory);
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(temp)));
+			try {
+				out.writeInt(cacheFormat);
+				out.writeUTF(url);
+				out.writeUTF(snapshot.stamp);
+				writeArrayMap(out, snapshot.columnMap);
+				writeStringMap(out, snapshot.defaultValues);
+				writeStringMap(out, snapshot.elementTypes);
+				writeArrayMap(out, snapshot.keyMap);
+				writeStringMap(out, snapshot.typeMap);
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(file)) {
+				file.delete();
+				temp.renameTo(file);
+			}
+		} catch (IOException ex) {
+			// the snapshot is loaded from the database next time instead
+			if (temp != null)
+				temp.delete();
+		}
+	}
+
+	/**
+	 * Writes a map of strings to a cache file. Each value is preceded by a
+	 * flag that is false for a null value.
+	 * 
+	 * @param out
+	 *            the stream the cache file is written to
+	 * @param map
+	 *            the map to write
+	 * @throws IOException
+	 *             if the map could not be written
+	 */
+	private static void writeStringMap(DataOutputStream out,
+			HashMap<String, String> map) throws IOException {
+		out.writeInt(map.size());
+		for (Map.Entry<String, String> entry : map.entrySet()) {
+			out.writeUTF(entry.getKey());
+			out.writeBoolean(entry.getValue() != null);
+			if (entry.getValue() != null)
+				out.writeUTF(entry.getValue());
+		}
+	}
+
+}
@@ -0,0 +1,263 @@
+package edu.utsa.mobbed;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of prepared statements for a single connection. Statements are
+ * keyed by their SQL text and result set type, so repeated calls with the same
+ * generated SQL reuse one statement and the server can reuse its plan. When
+ * the cache is full the least recently used statement is evicted. A statement
+ * is checked out by prepare until it is returned by release, and an evicted
+ * statement is only closed once it is no longer checked out, so eviction never
+ * closes a statement a caller is still using.
+ * 
+ * @author Arif Hossain, Jeremy Cockfield, Kay Robbins
+ * 
+ */
+public class StatementCache {
+
+	/**
+	 * The maximum number of cached statements
+	 */
+	private int capacity;
+	/**
+	 * A connection to the database
+	 */
+	private Connection dbCon;
+	/**
+	 * The number of statements closed by eviction
+	 */
+	private long evictions;
+	/**
+	 * The statements that are checked out
+	 */
+	private IdentityHashMap<PreparedStatement, Boolean> checkedOut = new IdentityHashMap<PreparedStatement, Boolean>();
+	/**
+	 * The number of lookups that found a cached statement
+	 */
+	private long hits;
+	/**
+	 * The number of lookups that prepared a new statement
+	 */
+	private long misses;
+	/**
+	 * The checked out statements that are closed when they are released
+	 */
+	private IdentityHashMap<PreparedStatement, Boolean> retired = new IdentityHashMap<PreparedStatement, Boolean>();
+	/**
+	 * The cached statements in least recently used order
+	 */
+	private LinkedHashMap<String, PreparedStatement> statements;
+
+	/**
+	 * Creates a StatementCache object.
+	 * 
+	 * @param dbCon
+	 *            a connection to the database
+	 * @param capacity
+	 *            the maximum number of cached statements
+	 */
+	public StatementCache(Connection dbCon, int capacity) {
+		this.dbCon = dbCon;
+		this.capacity = capacity;
+		statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f,
+				true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(
+					Map.Entry<String, PreparedStatement> eldest) {
+				if (size() <= StatementCache.this.capacity)
+					return false;
+				retire(eldest.getValue());
+				evictions++;
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Closes all cached and checked out statements and empties the cache.
+	 */
+	public synchronized void close() {
+		for (PreparedStatement pstmt : statements.values())
+			closeStatement(pstmt);
+		for (PreparedStatement pstmt : retired.keySet())
+			closeStatement(pstmt);
+		statements.clear();
+		retired.clear();
+		checkedOut.clear();
+	}
+
+	/**
+	 * Gets the maximum number of cached statements.
+	 * 
+	 * @return the capacity of the cache
+	 */
+	public synchronized int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Gets the number of statements closed by eviction.
+	 * 
+	 * @return the number of evictions
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Gets the fraction of lookups that found a cached statement.
+	 * 
+	 * @return the hit rate, 0 if there were no lookups
+	 */
+	public synchronized double getHitRate() {
+		long lookups = hits + misses;
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	/**
+	 * Gets the number of lookups that found a cached statement.
+	 * 
+	 * @return the number of hits
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Gets the number of lookups that prepared a new statement.
+	 * 
+	 * @return the number of misses
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Gets the number of cached statements.
+	 * 
+	 * @return the size of the cache
+	 */
+	public synchronized int getSize() {
+		return statements.size();
+	}
+
+	/**
+	 * Gets a forward only prepared statement for a SQL string, preparing it if
+	 * it is not cached. The statement must be returned with release.
+	 * 
+	 * @param sql
+	 *            the SQL string of the statement
+	 * @return a prepared statement with its parameters cleared
+	 * @throws SQLException
+	 *             if an error occurs
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException {
+		return prepare(sql, ResultSet.TYPE_FORWARD_ONLY);
+	}
+
+	/**
+	 * Gets a read only prepared statement for a SQL string and result set
+	 * type, preparing it if it is not cached. If the cached statement is
+	 * already checked out a separate statement is prepared that is closed when
+	 * it is released. The statement must be returned with release.
+	 * 
+	 * @param sql
+	 *            the SQL string of the statement
+	 * @param resultSetType
+	 *            the result set type of the statement
+	 * @return a prepared statement with its parameters cleared
+	 * @throws SQLException
+	 *             if an error occurs
+	 */
+	public synchronized PreparedStatement prepare(String sql,
+			int resultSetType) throws SQLException {
+		String key = resultSetType + ":" + sql;
+		PreparedStatement pstmt = statements.get(key);
+		if (pstmt != null && !pstmt.isClosed()
+				&& !checkedOut.containsKey(pstmt)) {
+			hits++;
+			pstmt.clearParameters();
+			pstmt.clearBatch();
+			checkedOut.put(pstmt, Boolean.TRUE);
+			return pstmt;
+		}
+		misses++;
+		boolean shared = pstmt != null && checkedOut.containsKey(pstmt);
+		pstmt = dbCon.prepareStatement(sql, resultSetType,
+				ResultSet.CONCUR_READ_ONLY);
+		checkedOut.put(pstmt, Boolean.TRUE);
+		if (capacity > 0 && !shared)
+			statements.put(key, pstmt);
+		else
+			retired.put(pstmt, Boolean.TRUE);
+		return pstmt;
+	}
+
+	/**
+	 * Returns a statement checked out by prepare. The statement is closed if
+	 * it was evicted or never cached.
+	 * 
+	 * @param pstmt
+	 *            the statement to return, ignored if null
+	 */
+	public synchronized void release(PreparedStatement pstmt) {
+		if (pstmt == null || checkedOut.remove(pstmt) == null)
+			return;
+		if (retired.remove(pstmt) != null)
+			closeStatement(pstmt);
+	}
+
+	/**
+	 * Sets the maximum number of cached statements. Statements over the new
+	 * capacity are evicted and closed once they are no longer checked out.
+	 * 
+	 * @param capacity
+	 *            the maximum number of cached statements, 0 to disable caching
+	 */
+	public synchronized void setCapacity(int capacity) {
+		this.capacity = Math.max(capacity, 0);
+		Iterator<PreparedStatement> it = statements.values().iterator();
+		while (statements.size() > this.capacity && it.hasNext()) {
+			retire(it.next());
+			it.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Closes an evicted statement, or marks it to be closed on release if it
+	 * is checked out.
+	 * 
+	 * @param pstmt
+	 *            the evicted statement
+	 */
+	private void retire(PreparedStatement pstmt) {
+		if (checkedOut.containsKey(pstmt))
+			retired.put(pstmt, Boolean.TRUE);
+		else
+			closeStatement(pstmt);
+	}
+
+	/**
+	 * Closes a statement, ignoring errors since the statement is discarded.
+	 * 
+	 * @param pstmt
+	 *            the statement to close
+	 */
+	private static void closeStatement(PreparedStatement pstmt) {
+		try {
+			pstmt.close();
+		} catch (SQLException ex) {
+			// the statement is discarded either way
+		}
+	}
+}
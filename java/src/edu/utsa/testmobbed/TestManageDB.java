@@ -5,21 +5,35 @@ package edu.utsa.testmobbed;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
 import java.net.URLDecoder;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Properties;
 import java.util.UUID;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import edu.utsa.mobbed.ColumnarRows;
+import edu.utsa.mobbed.ConnectionOptions;
+import edu.utsa.mobbed.ConnectionPool;
 import edu.utsa.mobbed.Elements;
 import edu.utsa.mobbed.ManageDB;
 import edu.utsa.mobbed.MobbedException;
+import edu.utsa.mobbed.QueryEvent;
+import edu.utsa.mobbed.QueryLatencyHistogram;
+import edu.utsa.mobbed.QueryListener;
+import edu.utsa.mobbed.SchemaSnapshot;
+import edu.utsa.mobbed.StatementCache;
 
 /**
  * Unit tests for ManageDB class
@@ -56,6 +70,73 @@ public class TestManageDB {
 				expected, actual);
 	}
 
+	@Test
+	public void testAddRowsCopy() throws Exception {
+		System.out.println("Unit test for addRows with a binary COPY:");
+		System.out
+				.println("It should store the same values with COPY as with INSERT statements");
+		String entityUuid = UUID.randomUUID().toString();
+		String[] commentColumns = { "comment_uuid", "comment_entity_uuid",
+				"comment_entity_class", "comment_time", "comment_value" };
+		String[][] commentValues = {
+				{ null, entityUuid, "datasets", "2013-04-01 10:20:30.5",
+						"copied" },
+				{ null, entityUuid, "datasets", "2013-03-10 02:30:00", null } };
+		String[] attributeColumns = { "attribute_uuid",
+				"attribute_entity_uuid", "attribute_entity_class",
+				"attribute_organizational_uuid", "attribute_path",
+				"attribute_value", "attribute_numeric_value" };
+		String[][] attributeValues = {
+				{ null, entityUuid, "datasets", entityUuid, "/copied", "2.5" },
+				{ null, entityUuid, "datasets", entityUuid, null, null } };
+		Double[][] attributeDoubles = { { 2.5 }, { null } };
+		String[][] insertedRows;
+		String[][] copiedRows;
+		try {
+			md.setCopyThreshold(0);
+			String[] commentKeys = md.addRows("comments", commentColumns,
+					copyValues(commentValues), null, null);
+			String[] attributeKeys = md.addRows("attributes",
+					attributeColumns, copyValues(attributeValues),
+					new String[] { "attribute_numeric_value" },
+					attributeDoubles);
+			insertedRows = retrieveByKeys(commentKeys, attributeKeys);
+			md.setCopyThreshold(1);
+			commentKeys = md.addRows("comments", commentColumns,
+					copyValues(commentValues), null, null);
+			attributeKeys = md.addRows("attributes", attributeColumns,
+					copyValues(attributeValues),
+					new String[] { "attribute_numeric_value" },
+					attributeDoubles);
+			System.out.println("--It should return a key for each copied row");
+			assertEquals("Number of comment keys is not equal", 2,
+					commentKeys.length);
+			assertEquals("Number of attribute keys is not equal", 2,
+					attributeKeys.length);
+			copiedRows = retrieveByKeys(commentKeys, attributeKeys);
+			for (int i = 0; i < 2; i++) {
+				assertEquals("Stored comment key is not the returned key",
+						commentKeys[i], copiedRows[i][0]);
+				assertEquals("Stored attribute key is not the returned key",
+						attributeKeys[i], copiedRows[i + 2][0]);
+			}
+		} finally {
+			md.setCopyThreshold(1000);
+		}
+		System.out
+				.println("--It should store values and NULLs equal to INSERT statements");
+		for (int i = 0; i < insertedRows.length; i++) {
+			assertArrayEquals("Copied row is not equal to inserted row",
+					Arrays.copyOfRange(insertedRows[i], 1,
+							insertedRows[i].length), Arrays.copyOfRange(
+							copiedRows[i], 1, copiedRows[i].length));
+		}
+		assertNull("NULL varchar is not stored as NULL", copiedRows[1][5]);
+		assertTrue("A time in a daylight saving gap is shifted",
+				copiedRows[1][4].startsWith("2013-03-10 02:30:00"));
+		assertNull("NULL double is not stored as NULL", copiedRows[3][5]);
+	}
+
 	@Test(expected = MobbedException.class)
 	public void testAddRowsInvalidColumnNames() throws Exception {
 		System.out.println("Unit test for addRows with invalid columns names:");
@@ -100,6 +181,84 @@ public class TestManageDB {
 		md.addRows(tableName, columnNames, columnValues, null, null);
 	}
 
+	@Test
+	public void testAddRowsUpdateAndInsert() throws Exception {
+		System.out
+				.println("Unit test for addRows with existing and new keys in one batch:");
+		System.out
+				.println("It should update the rows whose keys exist and insert the others");
+		String tableName = "contacts";
+		String[] columnNames = md.getColumnNames(tableName);
+		String[][] contactValues = {
+				{ null, "Update", "Me", null, null, null, null, null, null,
+						null, null, null },
+				{ null, "Update", "Me Too", null, null, null, null, null,
+						null, null, null, null } };
+		String[] keys = md.addRows(tableName, columnNames, contactValues,
+				null, null);
+		String newKey = UUID.randomUUID().toString();
+		String[][] updateValues = {
+				{ keys[0].toUpperCase(), "Updated", "Me", null, null, null,
+						null, null, null, null, null, null },
+				{ newKey, "Inserted", "Me", null, null, null, null, null,
+						null, null, null, null },
+				{ keys[1], "Updated", "Me Too", null, null, null, null, null,
+						null, null, null, null } };
+		String[] actual = md.addRows(tableName, columnNames, updateValues,
+				null, null);
+		System.out.println("--It should return the keys of all three rows");
+		assertEquals("Number of keys returned is not equal", 3,
+				actual.length);
+		String[] searchColumns = { "contact_first_name" };
+		String[][] searchValues = { { "Updated" } };
+		String[][] updated = md.retrieveRows(tableName,
+				Double.POSITIVE_INFINITY, "off", null, null, searchColumns,
+				searchValues, null, null, null, null);
+		System.out.println("--It should update the two existing contacts");
+		assertEquals("Number of updated rows is not equal", 2, updated.length);
+		searchValues[0][0] = "Inserted";
+		String[][] inserted = md.retrieveRows(tableName,
+				Double.POSITIVE_INFINITY, "off", null, null, searchColumns,
+				searchValues, null, null, null, null);
+		System.out.println("--It should insert the new contact");
+		assertEquals("Number of inserted rows is not equal", 1,
+				inserted.length);
+	}
+
+	@Test
+	public void testAddRowsUpsert() throws Exception {
+		System.out.println("Unit test for addRows in upsert mode:");
+		System.out
+				.println("It should update the rows whose keys exist and insert the others in one batch");
+		String tableName = "contacts";
+		String[] columnNames = md.getColumnNames(tableName);
+		String[][] contactValues = { { null, "Upsert", "Me", null, null,
+				null, null, null, null, null, null, null } };
+		String[] keys = md.addRows(tableName, columnNames, contactValues,
+				null, null, true);
+		String newKey = UUID.randomUUID().toString();
+		String[][] upsertValues = {
+				{ keys[0], "Upserted", "Me", null, null, null, null, null,
+						null, null, null, null },
+				{ newKey, "Upserted", "Me Too", null, null, null, null, null,
+						null, null, null, null } };
+		String[] actual = md.addRows(tableName.toUpperCase(), columnNames,
+				upsertValues, null, null, true);
+		String[] expected = { keys[0], newKey };
+		System.out
+				.println("--It should return the same keys as addRows without upsert for an upper case table name");
+		assertArrayEquals("The keys returned are not equal to the expected keys",
+				expected, actual);
+		String[] searchColumns = { "contact_first_name" };
+		String[][] searchValues = { { "Upserted" } };
+		String[][] rows = md.retrieveRows(tableName, Double.POSITIVE_INFINITY,
+				"off", null, null, searchColumns, searchValues, null, null,
+				null, null);
+		System.out
+				.println("--It should update the existing contact and insert the new one");
+		assertEquals("Number of upserted rows is not equal", 2, rows.length);
+	}
+
 	@Test
 	public void testCloseCursor() throws Exception {
 		String query = "INSERT INTO DATASETS (DATASET_UUID, DATASET_NAME) VALUES (?, ?)";
@@ -135,6 +294,125 @@ public class TestManageDB {
 		md.closeCursor("invalid_cursor");
 	}
 
+	@Test
+	public void testConnectionOptions() throws Exception {
+		System.out.println("Unit test for connection options:");
+		System.out
+				.println("It should store the driver options with the credentials");
+		ConnectionOptions expected = new ConnectionOptions();
+		expected.setReWriteBatchedInserts(true);
+		expected.setPrepareThreshold(1);
+		expected.setDefaultRowFetchSize(500);
+		File file = File.createTempFile("mobbed", ".properties");
+		try {
+			ManageDB.createCredentials(file.getPath(), name, hostname, user,
+					password, expected);
+			String[] credentials = ManageDB.loadCredentials(file.getPath());
+			assertEquals("The credentials are not equal", name, credentials[0]);
+			ConnectionOptions actual = ManageDB.loadConnectionOptions(file
+					.getPath());
+			assertEquals("The options are not equal", expected.toString(),
+					actual.toString());
+			assertNull("An option that is not set is loaded",
+					actual.getBinaryTransfer());
+			System.out
+					.println("--It should connect with the stored driver options");
+			ManageDB optionsDB = new ManageDB(name, hostname, user, password,
+					actual, verbose);
+			try {
+				String[][] rows = optionsDB.retrieveRows("contacts", 1, "off",
+						null, null, null, null, null, null, null, null);
+				assertEquals("The number of rows is not equal", 1,
+						rows.length);
+				System.out
+						.println("--It should fetch rows with the default fetch size option");
+				assertEquals("The fetch size is not the option", 500,
+						optionsDB.getFetchSize());
+			} finally {
+				optionsDB.close();
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testConnectionOptionsReachDriver() throws Exception {
+		System.out.println("Unit test for connection options in the driver:");
+		System.out
+				.println("It should pass every option as a property the driver knows");
+		ConnectionOptions options = new ConnectionOptions();
+		options.setBinaryTransfer(false);
+		options.setDefaultRowFetchSize(100);
+		options.setPrepareThreshold(1);
+		options.setReceiveBufferSize(65536);
+		options.setReWriteBatchedInserts(true);
+		options.setSendBufferSize(65536);
+		Properties prop = options.toProperties();
+		String url = "jdbc:postgresql://" + hostname + "/" + name;
+		Class.forName("org.postgresql.Driver");
+		DriverPropertyInfo[] info = DriverManager.getDriver(url)
+				.getPropertyInfo(url, prop);
+		for (String option : prop.stringPropertyNames()) {
+			String value = null;
+			for (int i = 0; i < info.length; i++)
+				if (info[i].name.equals(option))
+					value = info[i].value;
+			assertEquals("The driver does not see the option " + option,
+					prop.getProperty(option), value);
+		}
+		System.out
+				.println("--It should apply the options to the connection");
+		ManageDB optionsDB = new ManageDB(name, hostname, user, password,
+				options, verbose);
+		try {
+			Connection con = optionsDB.getConnection();
+			Statement stmt = con.createStatement();
+			try {
+				assertEquals("The driver fetch size is not the option", 100,
+						stmt.getFetchSize());
+			} finally {
+				stmt.close();
+			}
+			assertEquals("The driver prepare threshold is not the option", 1,
+					((org.postgresql.PGConnection) con).getPrepareThreshold());
+		} finally {
+			optionsDB.close();
+		}
+	}
+
+	@Test
+	public void testCountRows() throws Exception {
+		System.out.println("Unit test for countRows:");
+		System.out
+				.println("It should count the datasets found by a tag search");
+		String[][] tagValues = { { "EyeTrack", "VisualTarget" } };
+		String[][] rows = md.retrieveRows("datasets", Double.POSITIVE_INFINITY,
+				"off", tagValues, null, null, null, null, null, null, null);
+		long actual = md.countRows("datasets", "off", tagValues, null, null,
+				null, null, null, null);
+		System.out
+				.println("--It should return the number of rows retrieveRows returns");
+		assertEquals("The count is not equal to the number of rows",
+				rows.length, actual);
+	}
+
+	@Test
+	public void testExistsRows() throws Exception {
+		System.out.println("Unit test for existsRows:");
+		System.out
+				.println("It should check if any dataset matches the search criteria");
+		String[] columnNames = { "dataset_name" };
+		String[][] columnValues = { { "MANAGEDB_DATASET" } };
+		assertTrue("The dataset is not found", md.existsRows("datasets",
+				"off", null, null, columnNames, columnValues, null, null, null));
+		String[][] missingValues = { { UUID.randomUUID().toString() } };
+		System.out
+				.println("--It should return false when no dataset matches");
+		assertFalse("A missing dataset is found", md.existsRows("datasets",
+				"off", null, null, columnNames, missingValues, null, null, null));
+	}
+
 	@Test
 	public void testGetColumnNames() throws Exception {
 		System.out.println("Unit test for getColumnNames:");
@@ -282,6 +560,71 @@ public class TestManageDB {
 				actual);
 	}
 
+	@Test
+	public void testStatementCache() throws Exception {
+		System.out.println("Unit test for the prepared statement cache:");
+		System.out
+				.println("It should reuse the prepared statement of a repeated query");
+		StatementCache cache = md.getStatementCache();
+		md.checkDatasetVersion(false, "mobbed", "STATEMENT_CACHE_DATASET");
+		long hits = cache.getHits();
+		md.checkDatasetVersion(false, "mobbed", "STATEMENT_CACHE_DATASET");
+		System.out
+				.println("--It should count a hit for the repeated query");
+		assertEquals("The number of cache hits is not equal", hits + 1,
+				cache.getHits());
+		int capacity = cache.getCapacity();
+		cache.setCapacity(0);
+		System.out
+				.println("--It should evict all statements when the capacity is 0");
+		assertEquals("The cache is not empty", 0, cache.getSize());
+		cache.setCapacity(capacity);
+	}
+
+	@Test
+	public void testStatementCacheSmallCapacity() throws Exception {
+		System.out
+				.println("Unit test for the prepared statement cache with a small capacity:");
+		System.out
+				.println("It should not close a statement that is checked out when it is evicted");
+		StatementCache cache = md.getStatementCache();
+		int capacity = cache.getCapacity();
+		try {
+			cache.setCapacity(1);
+			String tableName = "contacts";
+			String[] columnNames = md.getColumnNames(tableName);
+			String[][] contactValues = { { null, "Small", "Cache", null,
+					null, null, null, null, null, null, null, null } };
+			String[] keys = md.addRows(tableName, columnNames, contactValues,
+					null, null);
+			String[][] updateValues = { { keys[0], "Smaller", "Cache", null,
+					null, null, null, null, null, null, null, null } };
+			System.out
+					.println("--It should insert and update rows with more statements than the capacity");
+			assertArrayEquals("The keys returned are not equal", keys,
+					md.addRows(tableName, columnNames, updateValues, null,
+							null));
+			PreparedStatement first = cache.prepare("SELECT 1");
+			PreparedStatement second = cache.prepare("SELECT 2");
+			System.out
+					.println("--It should keep an evicted statement open until it is released");
+			assertFalse("A checked out statement was closed",
+					first.isClosed());
+			cache.release(first);
+			assertTrue("A released evicted statement was not closed",
+					first.isClosed());
+			PreparedStatement again = cache.prepare("SELECT 2");
+			System.out
+					.println("--It should not return a statement that is already checked out");
+			assertNotSame("A checked out statement was returned twice",
+					second, again);
+			cache.release(again);
+			cache.release(second);
+		} finally {
+			cache.setCapacity(capacity);
+		}
+	}
+
 	@Test
 	public void testgetTables() throws Exception {
 		System.out.println("Unit test for getTables:");
@@ -386,6 +729,391 @@ public class TestManageDB {
 				expected, actual);
 	}
 
+	@Test
+	public void testRetrieveRowsCursorPrefetch() throws Exception {
+		System.out.println("Unit test for retrieveRows with cursor prefetch:");
+		System.out
+				.println("It should page through the datasets with the next page fetched ahead");
+		String query = "INSERT INTO DATASETS (DATASET_UUID, DATASET_NAME) VALUES (?, ?)";
+		PreparedStatement pstmt = md.getConnection().prepareStatement(query);
+		for (int i = 0; i < 50; i++) {
+			pstmt.setObject(1, UUID.randomUUID());
+			pstmt.setString(2, "prefetch_dataset" + (i + 1));
+			pstmt.addBatch();
+		}
+		pstmt.executeBatch();
+		String[] columnNames = { "dataset_name" };
+		String[][] columnValues = { { "prefetch_dataset*" } };
+		md.setPrefetch(true);
+		try {
+			String[][] rows = md.retrieveRows("datasets", 20, "on", null,
+					null, columnNames, columnValues, null, null, null,
+					"prefetch_cursor");
+			assertEquals(
+					"Number of rows returned is not equal to the expected rows",
+					20, rows.length);
+			System.out
+					.println("--It should return a smaller page than the page fetched ahead");
+			rows = md.retrieveRows("datasets", 10, "on", null, null,
+					columnNames, columnValues, null, null, null,
+					"prefetch_cursor");
+			assertEquals(
+					"Number of rows returned is not equal to the expected rows",
+					10, rows.length);
+			rows = md.retrieveRows("datasets", 30, "on", null, null,
+					columnNames, columnValues, null, null, null,
+					"prefetch_cursor");
+			assertEquals(
+					"Number of rows returned is not equal to the expected rows",
+					20, rows.length);
+			System.out
+					.println("--It should return no rows when the cursor is exhausted");
+			rows = md.retrieveRows("datasets", 30, "on", null, null,
+					columnNames, columnValues, null, null, null,
+					"prefetch_cursor");
+			assertTrue("Rows are returned from an exhausted cursor",
+					ManageDB.isEmpty(rows));
+		} finally {
+			md.setPrefetch(false);
+		}
+	}
+
+	@Test
+	public void testRetrieveRowsCursorShortPrefetch() throws Exception {
+		System.out
+				.println("Unit test for retrieveRows with a short page fetched ahead:");
+		System.out
+				.println("It should return every row when the page size changes after the last page was fetched ahead");
+		String query = "INSERT INTO DATASETS (DATASET_UUID, DATASET_NAME) VALUES (?, ?)";
+		PreparedStatement pstmt = md.getConnection().prepareStatement(query);
+		for (int i = 0; i < 50; i++) {
+			pstmt.setObject(1, UUID.randomUUID());
+			pstmt.setString(2, "short_prefetch_dataset" + (i + 1));
+			pstmt.addBatch();
+		}
+		pstmt.executeBatch();
+		String[] columnNames = { "dataset_name" };
+		String[][] columnValues = { { "short_prefetch_dataset*" } };
+		HashMap<String, String> names = new HashMap<String, String>();
+		md.setPrefetch(true);
+		try {
+			String[][] rows = md.retrieveRows("datasets", 20, "on", null,
+					null, columnNames, columnValues, null, null, null,
+					"short_prefetch_cursor");
+			for (String[] row : rows)
+				names.put(row[3], row[3]);
+			rows = md.retrieveRows("datasets", 20, "on", null, null,
+					columnNames, columnValues, null, null, null,
+					"short_prefetch_cursor");
+			for (String[] row : rows)
+				names.put(row[3], row[3]);
+			System.out
+					.println("--It should return the whole short page fetched ahead for a larger page");
+			rows = md.retrieveRows("datasets", 30, "on", null, null,
+					columnNames, columnValues, null, null, null,
+					"short_prefetch_cursor");
+			assertEquals(
+					"Number of rows returned is not equal to the expected rows",
+					10, rows.length);
+			for (String[] row : rows)
+				names.put(row[3], row[3]);
+			assertEquals("Rows are skipped or repeated", 50, names.size());
+		} finally {
+			md.setPrefetch(false);
+		}
+	}
+
+	@Test
+	public void testRetrieveRowsAfter() throws Exception {
+		System.out.println("Unit test for retrieveRowsAfter:");
+		System.out
+				.println("It should page through the datasets in key order");
+		String query = "INSERT INTO DATASETS (DATASET_UUID, DATASET_NAME) VALUES (?, ?)";
+		PreparedStatement pstmt = md.getConnection().prepareStatement(query);
+		for (int i = 0; i < 50; i++) {
+			pstmt.setObject(1, UUID.randomUUID());
+			pstmt.setString(2, "keyset_dataset" + (i + 1));
+			pstmt.addBatch();
+		}
+		pstmt.executeBatch();
+		String[] columnNames = { "dataset_name" };
+		String[][] columnValues = { { "keyset_dataset*" } };
+		String[][] rows = md.retrieveRowsAfter("datasets", 30, "on", null,
+				null, columnNames, columnValues, null, null, null, null);
+		assertEquals(
+				"Number of rows returned is not equal to the expected rows",
+				30, rows.length);
+		String[] lastKey = md.getLastKey("datasets", rows);
+		rows = md.retrieveRowsAfter("datasets", 30, "on", null, null,
+				columnNames, columnValues, null, null, null, lastKey);
+		System.out
+				.println("--It should return the remaining rows after the last key");
+		assertEquals(
+				"Number of rows returned is not equal to the expected rows",
+				20, rows.length);
+		lastKey = md.getLastKey("datasets", rows);
+		rows = md.retrieveRowsAfter("DATASETS", 30, "on", null, null,
+				columnNames, columnValues, null, null, null, lastKey);
+		assertTrue("Rows are returned after the last page",
+				ManageDB.isEmpty(rows));
+	}
+
+	@Test
+	public void testRetrieveRowsDoubleRange() throws Exception {
+		System.out.println("Unit test for retrieveRows with a double range:");
+		System.out
+				.println("It should retrieve the datadefs whose sampling rate is within the range");
+		String datadefValues[][] = {
+				{ null, "NUMERIC_STREAM", null, null, "RANGE DATADEF" },
+				{ null, "NUMERIC_STREAM", null, null, "RANGE DATADEF" } };
+		String[] doubleColumns = { "datadef_sampling_rate" };
+		Double[][] doubleValues = { { 1001.0 }, { 1010.0 } };
+		md.addRows("datadefs", md.getColumnNames("datadefs"), datadefValues,
+				doubleColumns, doubleValues);
+		Double[][] searchValues = { { 1000.0 } };
+		double[][] range = { { 0.5, 1.5 } };
+		String[][] rows = md.retrieveRows("datadefs",
+				Double.POSITIVE_INFINITY, "off", null, null, null, null,
+				doubleColumns, searchValues, range, null);
+		System.out
+				.println("--It should return only the datadef within the range");
+		assertEquals("Number of rows returned is not equal to the expected row",
+				1, rows.length);
+		range[0][1] = 10.5;
+		rows = md.retrieveRows("datadefs", Double.POSITIVE_INFINITY, "off",
+				null, null, null, null, doubleColumns, searchValues, range,
+				null);
+		System.out
+				.println("--It should bind a new range to the same query shape");
+		assertEquals("Number of rows returned is not equal to the expected row",
+				2, rows.length);
+	}
+
+	@Test
+	public void testRetrieveRowsFetchSize() throws Exception {
+		System.out.println("Unit test for retrieveRows with a small fetch size:");
+		System.out
+				.println("It should retrieve all the contacts when they are fetched one at a time");
+		String[][] expected = md.retrieveRows("contacts",
+				Double.POSITIVE_INFINITY, "off", null, null, null, null, null,
+				null, null, null);
+		md.setAutoCommit(false);
+		md.setFetchSize(1);
+		String[][] actual;
+		try {
+			actual = md.retrieveRows("contacts", Double.POSITIVE_INFINITY,
+					"off", null, null, null, null, null, null, null, null);
+			md.commit();
+		} finally {
+			md.setFetchSize(1000);
+			md.setAutoCommit(true);
+		}
+		System.out
+				.println("--It should return the same rows as a single fetch");
+		assertEquals(
+				"The number of rows returned is not equal to the exepect rows",
+				expected.length, actual.length);
+	}
+
+	@Test
+	public void testLease() throws Exception {
+		System.out.println("Unit test for lease:");
+		System.out
+				.println("It should reuse a pooled connection after it is returned");
+		ConnectionPool pool = ConnectionPool.getPool(name, hostname, user,
+				password);
+		ManageDB leased = ManageDB.lease(name, hostname, user, password,
+				verbose);
+		Connection expected = leased.getConnection();
+		assertEquals("The leased connection is not counted", 1,
+				pool.getLeasedCount());
+		leased.close();
+		leased = ManageDB.lease(name, hostname, user, password, verbose);
+		Connection actual = leased.getConnection();
+		leased.close();
+		assertSame("The pooled connection is not reused", expected, actual);
+		System.out
+				.println("--It should keep one idle connection after both leases");
+		assertEquals("The pool size is not equal", 1, pool.getSize());
+		assertEquals("The idle count is not equal", 1, pool.getIdleCount());
+		assertTrue("The returned connection is not reset to auto commit",
+				actual.getAutoCommit());
+		System.out
+				.println("--It should not share the pool with another password");
+		assertNotSame("The pool is shared across passwords", pool,
+				ConnectionPool.getPool(name, hostname, user, password + "x"));
+		pool.close();
+	}
+
+	@Test
+	public void testQueryListener() throws Exception {
+		System.out.println("Unit test for addQueryListener:");
+		System.out
+				.println("It should record the latency of each query shape in a histogram");
+		QueryLatencyHistogram histogram = new QueryLatencyHistogram();
+		md.addQueryListener(histogram);
+		String[][] tagValues = { { "EyeTrack", "VisualTarget" } };
+		md.retrieveRows("datasets", Double.POSITIVE_INFINITY, "off",
+				tagValues, null, null, null, null, null, null, null);
+		md.retrieveRows("datasets", Double.POSITIVE_INFINITY, "off",
+				tagValues, null, null, null, null, null, null, null);
+		md.removeQueryListener(histogram);
+		System.out
+				.println("--It should record one shape executed twice");
+		String[] shapes = histogram.getShapes();
+		assertEquals("The number of shapes is not 1", 1, shapes.length);
+		assertEquals("The shape is not counted twice", 2,
+				histogram.getCount(shapes[0]));
+		assertTrue("The latency is not recorded",
+				histogram.getTotalNanos(shapes[0]) > 0);
+		md.retrieveRows("datasets", Double.POSITIVE_INFINITY, "off",
+				tagValues, null, null, null, null, null, null, null);
+		System.out
+				.println("--It should not record queries after the listener is removed");
+		assertEquals("A query is recorded after removing the listener", 2,
+				histogram.getCount(shapes[0]));
+	}
+
+	@Test
+	public void testQueryListenerBatches() throws Exception {
+		System.out.println("Unit test for addQueryListener with addRows:");
+		System.out
+				.println("It should report the key lookup, insert batch and update batch");
+		final ArrayList<QueryEvent> events = new ArrayList<QueryEvent>();
+		QueryListener listener = new QueryListener() {
+			public void queryExecuted(QueryEvent event) {
+				events.add(event);
+			}
+		};
+		String entityUuid = UUID.randomUUID().toString();
+		String[] columns = { "comment_uuid", "comment_entity_uuid",
+				"comment_entity_class", "comment_time", "comment_value" };
+		String[][] values = {
+				{ null, entityUuid, "datasets", "2013-04-01 10:20:30", "first" },
+				{ null, entityUuid, "datasets", "2013-04-01 10:20:30",
+						"second" } };
+		String[] keys = md.addRows("comments", columns, values, null, null);
+		String[][] changedValues = {
+				{ keys[0], entityUuid, "datasets", "2013-04-01 10:20:30",
+						"updated" },
+				{ null, entityUuid, "datasets", "2013-04-01 10:20:30", "third" } };
+		md.addQueryListener(listener);
+		try {
+			md.addRows("comments", columns, changedValues, null, null);
+		} finally {
+			md.removeQueryListener(listener);
+		}
+		QueryEvent lookupEvent = null;
+		QueryEvent insertEvent = null;
+		QueryEvent updateEvent = null;
+		for (QueryEvent event : events) {
+			if (event.getSql().startsWith("SELECT"))
+				lookupEvent = event;
+			else if (event.getSql().startsWith("INSERT"))
+				insertEvent = event;
+			else if (event.getSql().startsWith("UPDATE"))
+				updateEvent = event;
+		}
+		assertEquals("The number of events is not equal", 3, events.size());
+		System.out.println("--It should report the key lookup");
+		assertNotNull("The key lookup is not reported", lookupEvent);
+		assertEquals("The number of existing keys is not equal", 1,
+				lookupEvent.getRowCount());
+		System.out
+				.println("--It should report each batch with its own size and rows");
+		assertNotNull("The insert batch is not reported", insertEvent);
+		assertEquals("The insert batch size is not equal", 1,
+				insertEvent.getBatchSize());
+		assertEquals("The inserted rows are not equal", 1,
+				insertEvent.getRowCount());
+		assertNotNull("The update batch is not reported", updateEvent);
+		assertEquals("The update batch size is not equal", 1,
+				updateEvent.getBatchSize());
+		assertEquals("The updated rows are not equal", 1,
+				updateEvent.getRowCount());
+		assertTrue("The update latency is not recorded",
+				updateEvent.getElapsedNanos() > 0);
+	}
+
+	@Test
+	public void testRefreshSchema() throws Exception {
+		System.out.println("Unit test for refreshSchema:");
+		System.out
+				.println("It should share one schema snapshot for the database");
+		SchemaSnapshot expected = SchemaSnapshot.get(md.getConnection());
+		SchemaSnapshot actual = SchemaSnapshot.get(md.getConnection());
+		assertSame("The schema snapshot is not shared", expected, actual);
+		md.refreshSchema();
+		actual = SchemaSnapshot.get(md.getConnection());
+		System.out
+				.println("--It should load a new snapshot of the same schema when refreshed");
+		assertNotSame("The schema snapshot is not reloaded", expected, actual);
+		assertEquals("The schema stamp changed without a schema change",
+				expected.getStamp(), actual.getStamp());
+		assertArrayEquals("The columns changed without a schema change",
+				expected.getColumnMap().get("datasets"),
+				md.getColumnNames("datasets"));
+	}
+
+	@Test
+	public void testSchemaCacheDirectory() throws Exception {
+		System.out.println("Unit test for the schema cache directory:");
+		System.out
+				.println("It should store the schema snapshot on disk and read it back");
+		File directory = new File(System.getProperty("java.io.tmpdir"),
+				"mobbed-schema-" + UUID.randomUUID());
+		SchemaSnapshot.setCacheDirectory(directory.getPath());
+		try {
+			SchemaSnapshot.clear();
+			SchemaSnapshot expected = SchemaSnapshot.get(md.getConnection());
+			assertEquals("The schema snapshot is not stored", 1,
+					directory.listFiles().length);
+			SchemaSnapshot.clear();
+			long hits = SchemaSnapshot.getCacheHits();
+			long loads = SchemaSnapshot.getCatalogLoads();
+			SchemaSnapshot actual = SchemaSnapshot.get(md.getConnection());
+			System.out
+					.println("--It should read a snapshot of the same schema from disk");
+			assertEquals("The schema snapshot is not read from disk",
+					hits + 1, SchemaSnapshot.getCacheHits());
+			assertEquals("The schema is loaded from the catalog", loads,
+					SchemaSnapshot.getCatalogLoads());
+			assertNotSame("The schema snapshot is not a new object",
+					expected, actual);
+			assertEquals("The stored schema stamp is not equal",
+					expected.getStamp(), actual.getStamp());
+			assertArrayEquals("The stored columns are not equal", expected
+					.getColumnMap().get("datasets"), actual.getColumnMap()
+					.get("datasets"));
+		} finally {
+			SchemaSnapshot.setCacheDirectory(null);
+			for (File file : directory.listFiles())
+				file.delete();
+			directory.delete();
+		}
+	}
+
+	@Test
+	public void testRetrieveColumns() throws Exception {
+		System.out.println("Unit test for retrieveColumns:");
+		System.out
+				.println("It should retrieve the contacts as typed columns");
+		String[][] rows = md.retrieveRows("contacts",
+				Double.POSITIVE_INFINITY, "off", null, null, null, null, null,
+				null, null, null);
+		ColumnarRows columns = md.retrieveColumns("contacts",
+				Double.POSITIVE_INFINITY, "off", null, null, null, null, null,
+				null, null);
+		System.out
+				.println("--It should return the same number of rows as retrieveRows");
+		assertEquals(
+				"The number of rows returned is not equal to the exepect rows",
+				rows.length, columns.getRowCount());
+		System.out.println("--It should return the contact uuids as UUIDs");
+		assertTrue("The contact uuid column is not a UUID array",
+				columns.getColumn("contact_uuid") instanceof UUID[]);
+	}
+
 	@Test
 	public void testRetrieveRowsLimit() throws Exception {
 		System.out.println("Unit test for retrieveRows with a limit:");
@@ -593,6 +1321,32 @@ public class TestManageDB {
 				expected, actual);
 	}
 
+	@Test
+	public void testRetrieveRowsProjection() throws Exception {
+		System.out.println("Unit test for retrieveRows with a projection:");
+		System.out
+				.println("It should retrieve only the projected columns of the datasets");
+		String[] columnNames = { "dataset_name" };
+		String[][] columnValues = { { "MANAGEDB_DATASET" } };
+		String[] projection = { "dataset_uuid", "dataset_name" };
+		String[][] rows = md.retrieveRows("datasets", Double.POSITIVE_INFINITY,
+				"off", null, null, columnNames, columnValues, null, null, null,
+				null, projection);
+		assertTrue("No rows are returned", rows.length > 0);
+		assertEquals("The number of columns is not equal", 2, rows[0].length);
+		System.out
+				.println("--It should return the projected columns in the given order");
+		assertEquals("The projected column is not equal", "MANAGEDB_DATASET",
+				rows[0][1]);
+	}
+
+	@Test(expected = MobbedException.class)
+	public void testRetrieveRowsInvalidProjection() throws Exception {
+		String[] projection = { "contact_uuid" };
+		md.retrieveRows("datasets", Double.POSITIVE_INFINITY, "off", null,
+				null, null, null, null, null, null, null, projection);
+	}
+
 	@Test
 	public void testRetrieveRowsStructureTags() throws Exception {
 		System.out
@@ -788,6 +1542,44 @@ public class TestManageDB {
 				expected, actual);
 	}
 
+	@Test
+	public void testUpgradeDatabase() throws Exception {
+		System.out.println("Unit test for upgradeDatabase:");
+		System.out
+				.println("It should create the search indexes and skip the ones that exist");
+		ManageDB.upgradeDatabase(name, hostname, user, password, verbose);
+		Statement stmt = md.getConnection().createStatement();
+		ResultSet rs = stmt
+				.executeQuery("SELECT COUNT(*) FROM PG_INDEXES WHERE INDEXNAME = 'tags_upper_name_idx'");
+		rs.next();
+		System.out
+				.println("--It should have an expression index on the tag names");
+		assertEquals("The tag name index does not exist", 1, rs.getInt(1));
+	}
+
+	@Test
+	public void testUpgradeDatabaseTrigramIndexes() throws Exception {
+		System.out
+				.println("Unit test for upgradeDatabase with trigram indexes:");
+		System.out
+				.println("It should create trigram indexes for regular expression searches");
+		ManageDB.upgradeDatabase(name, hostname, user, password, verbose, true);
+		Statement stmt = md.getConnection().createStatement();
+		ResultSet rs = stmt
+				.executeQuery("SELECT COUNT(*) FROM PG_INDEXES WHERE INDEXNAME IN ('tag_name_trgm_idx', 'attribute_value_trgm_idx')");
+		rs.next();
+		System.out
+				.println("--It should have trigram indexes on the tag names and attribute values");
+		assertEquals("The trigram indexes do not exist", 2, rs.getInt(1));
+		String[][] tags = { { "eye.*" } };
+		String[][] rows = md.retrieveRows("datasets", Double.POSITIVE_INFINITY,
+				"on", tags, null, null, null, null, null, null, null);
+		System.out
+				.println("--It should still find the dataset by a tag regular expression");
+		assertTrue("No rows are returned for the tag regular expression",
+				rows.length > 0);
+	}
+
 	@BeforeClass
 	public static void setup() throws Exception {
 		try {
@@ -842,4 +1634,27 @@ public class TestManageDB {
 
 	}
 
+	private static String[][] copyValues(String[][] values) {
+		String[][] copy = new String[values.length][];
+		for (int i = 0; i < values.length; i++)
+			copy[i] = values[i].clone();
+		return copy;
+	}
+
+	private static String[][] retrieveByKeys(String[] commentKeys,
+			String[] attributeKeys) throws Exception {
+		String[][] rows = new String[commentKeys.length + attributeKeys.length][];
+		for (int i = 0; i < commentKeys.length; i++)
+			rows[i] = md.retrieveRows("comments", Double.POSITIVE_INFINITY,
+					"off", null, null, new String[] { "comment_uuid" },
+					new String[][] { { commentKeys[i] } }, null, null, null,
+					null)[0];
+		for (int i = 0; i < attributeKeys.length; i++)
+			rows[commentKeys.length + i] = md.retrieveRows("attributes",
+					Double.POSITIVE_INFINITY, "off", null, null,
+					new String[] { "attribute_uuid" },
+					new String[][] { { attributeKeys[i] } }, null, null,
+					null, null)[0];
+		return rows;
+	}
 }
@@ -3,9 +3,14 @@
  */
 package edu.utsa.testmobbed;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.net.URLDecoder;
+import java.sql.ResultSet;
+import java.sql.Statement;
 import java.util.Arrays;
 
 import org.junit.AfterClass;
@@ -13,6 +18,7 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import edu.utsa.mobbed.ManageDB;
+import edu.utsa.mobbed.MobbedException;
 import edu.utsa.mobbed.NumericStreams;
 
 /**
@@ -30,6 +36,251 @@ public class TestNumericStreams {
 	private static String user = "postgres";
 	private static boolean verbose = false;
 
+	@Test
+	public void testRetrieveByPositionConcurrent() throws Exception {
+		System.out.println("Unit test for concurrent retrieveByPosition");
+		System.out
+				.println("It should give each concurrent reader its own copy of the same numeric stream");
+		String datadefValues[][] = { { null, "NUMERIC_STREAM", null, null,
+				"SHARED DATADEF" } };
+		String[] doubleColumns = { "datadef_sampling_rate" };
+		Double[][] doubleValues = { { 128.0 } };
+		final String[] datadefUuids = md.addRows("datadefs",
+				md.getColumnNames("datadefs"), datadefValues, doubleColumns,
+				doubleValues);
+		double[][] expected = { { 1.0, 2.0, 3.0, 4.0 }, { 5.0, 6.0, 7.0, 8.0 } };
+		double[] times = { 0, .0078125, .015625, .0234375 };
+		NumericStreams ns = new NumericStreams(md.getConnection());
+		ns.reset(datadefUuids[0]);
+		ns.save(expected, times, 1);
+		// Hold a lock on the table so the first read stays in flight
+		ManageDB locker = new ManageDB(name, hostname, user, password,
+				verbose);
+		Statement lockStmt = locker.getConnection().createStatement();
+		lockStmt.execute("LOCK TABLE numeric_streams IN ACCESS EXCLUSIVE MODE");
+		long sharedBefore = NumericStreams.getSharedReads();
+		final double[][][] results = new double[2][][];
+		final Exception[] errors = new Exception[2];
+		Thread leader = new Thread(new Runnable() {
+			public void run() {
+				try {
+					NumericStreams leaderNs = new NumericStreams(md
+							.getConnection());
+					leaderNs.reset(datadefUuids[0]);
+					results[1] = leaderNs.retrieveByPosition(1, 5, 2);
+				} catch (Exception ex) {
+					errors[1] = ex;
+				}
+			}
+		});
+		Thread follower = new Thread(new Runnable() {
+			public void run() {
+				try {
+					NumericStreams followerNs = new NumericStreams(md
+							.getConnection());
+					followerNs.reset(datadefUuids[0]);
+					results[0] = followerNs.retrieveByPosition(2, 4, 2);
+				} catch (Exception ex) {
+					errors[0] = ex;
+				}
+			}
+		});
+		try {
+			leader.start();
+			long deadline = System.currentTimeMillis() + 10000;
+			while (!isWaitingForLock(lockStmt)) {
+				assertTrue("The first read never started",
+						System.currentTimeMillis() < deadline);
+				Thread.sleep(10);
+			}
+			follower.start();
+			while (NumericStreams.getSharedReads() == sharedBefore) {
+				assertTrue("The second read did not join the first",
+						System.currentTimeMillis() < deadline);
+				Thread.sleep(10);
+			}
+		} finally {
+			locker.rollback();
+			leader.join();
+			follower.join();
+			locker.close();
+		}
+		System.out.println("--It should run a single COPY for both readers");
+		assertEquals("The reads were not shared", 1,
+				NumericStreams.getSharedReads() - sharedBefore);
+		assertNull("The first read failed", errors[1]);
+		assertNull("The second read failed", errors[0]);
+		double[][] expectedPart = { { 2.0, 3.0 }, { 6.0, 7.0 } };
+		System.out.println("--It should return the requested ranges");
+		assertTrue("Contained range returned is not equal",
+				Arrays.deepEquals(expectedPart, flipArray(results[0])));
+		assertTrue("Full range returned is not equal",
+				Arrays.deepEquals(expected, flipArray(results[1])));
+		System.out.println("--It should not share rows between readers");
+		results[0][0][0] = -1;
+		assertEquals("Rows are shared between readers", 2.0, results[1][1][0],
+				0);
+	}
+
+	@Test
+	public void testSaveChunked() throws Exception {
+		System.out.println("Unit test for saveChunked");
+		System.out
+				.println("It should store a numeric stream in bounded transactions");
+		String datadefValues[][] = { { null, "NUMERIC_STREAM", null, null,
+				"CHUNKED DATADEF" } };
+		String[] doubleColumns = { "datadef_sampling_rate" };
+		Double[][] doubleValues = { { 128.0 } };
+		String[] datadefUuids = md.addRows("datadefs",
+				md.getColumnNames("datadefs"), datadefValues, doubleColumns,
+				doubleValues);
+		double[][] expected = { { 1.0, 2.0, 3.0, 4.0, 5.0 } };
+		double[] times = { 0, .0078125, .015625, .0234375, .03125 };
+		NumericStreams ns = new NumericStreams(md.getConnection());
+		ns.reset(datadefUuids[0]);
+		long committed = ns.saveChunked(expected, times, 1, 2);
+		System.out.println("--It should return the last committed position");
+		assertEquals("Last committed position is not equal", 5, committed);
+		double[][] actual = flipArray(ns.retrieveByPosition(1, 6, 1));
+		assertTrue("Chunked stream returned is not equal",
+				Arrays.deepEquals(expected, actual));
+		System.out
+				.println("--It should skip committed samples when resumed");
+		committed = ns.saveChunked(expected, times, 1, 2);
+		assertEquals("Resumed position is not equal", 5, committed);
+	}
+
+	@Test
+	public void testSaveChunkedEmptyStream() throws Exception {
+		System.out.println("Unit test for saveChunked on an empty stream");
+		System.out
+				.println("It should store every sample of a stream that has no samples");
+		String datadefValues[][] = { { null, "NUMERIC_STREAM", null, null,
+				"CHUNKED EMPTY DATADEF" } };
+		String[] doubleColumns = { "datadef_sampling_rate" };
+		Double[][] doubleValues = { { 128.0 } };
+		String[] datadefUuids = md.addRows("datadefs",
+				md.getColumnNames("datadefs"), datadefValues, doubleColumns,
+				doubleValues);
+		NumericStreams ns = new NumericStreams(md.getConnection());
+		ns.reset(datadefUuids[0]);
+		System.out
+				.println("--It should return 0 as the max position of an empty stream");
+		assertEquals("Max position of an empty stream is not 0", 0,
+				ns.getMaxPosition());
+		double[][] expected = { { 1.0, 2.0, 3.0 } };
+		double[] times = { 0, .0078125, .015625 };
+		long committed = ns.saveChunked(expected, times, 1, 2);
+		assertEquals("Last committed position is not equal", 3, committed);
+		double[][] actual = flipArray(ns.retrieveByPosition(1, 4, 1));
+		assertTrue("Chunked stream returned is not equal",
+				Arrays.deepEquals(expected, actual));
+	}
+
+	@Test
+	public void testSaveCoalescing() throws Exception {
+		System.out.println("Unit test for save with coalescing");
+		System.out
+				.println("It should buffer contiguous saves and write them as one numeric stream");
+		String datadefValues[][] = { { null, "NUMERIC_STREAM", null, null,
+				"COALESCED DATADEF" } };
+		String[] doubleColumns = { "datadef_sampling_rate" };
+		Double[][] doubleValues = { { 128.0 } };
+		String[] datadefUuids = md.addRows("datadefs",
+				md.getColumnNames("datadefs"), datadefValues, doubleColumns,
+				doubleValues);
+		NumericStreams ns = new NumericStreams(md.getConnection());
+		ns.reset(datadefUuids[0]);
+		ns.setCoalescing(1000, 0);
+		double[][] first = { { 1.0, 2.0 }, { 3.0, 4.0 } };
+		double[] firstTimes = { 0, .0078125 };
+		double[][] second = { { 5.0 }, { 6.0 } };
+		double[] secondTimes = { .015625 };
+		ns.save(first, firstTimes, 1);
+		ns.save(second, secondTimes, 3);
+		System.out
+				.println("--It should not write the samples before the buffer is flushed");
+		assertEquals("Samples were written before flush", 0,
+				ns.getMaxPosition());
+		ns.flush();
+		double[][] expected = { { 1.0, 2.0, 5.0 }, { 3.0, 4.0, 6.0 } };
+		double[][] actual = flipArray(ns.retrieveByPosition(1, 4, 2));
+		System.out
+				.println("--It should retrieve the coalesced samples in position order");
+		assertTrue("Coalesced stream returned is not equal",
+				Arrays.deepEquals(expected, actual));
+		double[][][] timed = NumericStreams.retrieveByTime(
+				md.getConnection(), datadefUuids, 0, .015625, 128);
+		System.out.println("--It should preserve the times of the samples");
+		assertTrue("Coalesced times are not equal",
+				Arrays.deepEquals(flipArray(expected), timed[0]));
+	}
+
+	@Test
+	public void testSaveCoalescingCommit() throws Exception {
+		System.out.println("Unit test for save with coalescing and commit");
+		System.out
+				.println("It should write the buffered samples when the transaction is committed");
+		String datadefValues[][] = { { null, "NUMERIC_STREAM", null, null,
+				"COALESCED COMMIT DATADEF" } };
+		String[] doubleColumns = { "datadef_sampling_rate" };
+		Double[][] doubleValues = { { 128.0 } };
+		String[] datadefUuids = md.addRows("datadefs",
+				md.getColumnNames("datadefs"), datadefValues, doubleColumns,
+				doubleValues);
+		ManageDB other = new ManageDB(name, hostname, user, password, verbose);
+		NumericStreams otherNs = new NumericStreams(other.getConnection());
+		otherNs.reset(datadefUuids[0]);
+		otherNs.setCoalescing(1000, 0);
+		double[][] expected = { { 1.0, 2.0 }, { 3.0, 4.0 } };
+		double[] times = { 0, .0078125 };
+		otherNs.save(expected, times, 1);
+		other.commit();
+		other.close();
+		NumericStreams ns = new NumericStreams(md.getConnection());
+		ns.reset(datadefUuids[0]);
+		System.out
+				.println("--It should retrieve the committed samples from another connection");
+		double[][] actual = flipArray(ns.retrieveByPosition(1, 3, 2));
+		assertTrue("Committed stream returned is not equal",
+				Arrays.deepEquals(expected, actual));
+	}
+
+	@Test
+	public void testSaveStaging() throws Exception {
+		System.out.println("Unit test for save with staging mode");
+		System.out
+				.println("It should load a new numeric stream into its own partition");
+		String datadefValues[][] = { { null, "NUMERIC_STREAM", null, null,
+				"STAGED DATADEF" } };
+		String[] doubleColumns = { "datadef_sampling_rate" };
+		Double[][] doubleValues = { { 128.0 } };
+		String[] datadefUuids = md.addRows("datadefs",
+				md.getColumnNames("datadefs"), datadefValues, doubleColumns,
+				doubleValues);
+		double[][] expected = { { 1.0, 2.0, 3.0 }, { 4.0, 5.0, 6.0 } };
+		double[] times = { 0, .0078125, .015625 };
+		NumericStreams ns = new NumericStreams(md.getConnection());
+		ns.reset(datadefUuids[0]);
+		ns.save(expected, times, 1, "staging");
+		Statement stmt = md.getConnection().createStatement();
+		ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM pg_inherits"
+				+ " WHERE inhparent = 'numeric_streams'::regclass AND inhrelid = "
+				+ "'numeric_streams_" + datadefUuids[0].replace("-", "")
+				+ "'::regclass");
+		rs.next();
+		System.out
+				.println("--It should attach the staged table as a partition");
+		assertEquals("The staged table is not a partition", 1, rs.getInt(1));
+		rs.close();
+		stmt.close();
+		double[][] actual = flipArray(ns.retrieveByPosition(1, 4, 2));
+		System.out
+				.println("--It should retrieve a staged numeric stream that is equal");
+		assertTrue("Staged stream returned is not equal",
+				Arrays.deepEquals(expected, actual));
+	}
+
 	@Test
 	public void testStoreNumericStream() throws Exception {
 		System.out.println("Unit test for storeNumericValue");
@@ -54,6 +305,57 @@ public class TestNumericStreams {
 
 	}
 
+	@Test
+	public void testRetrieveByTime() throws Exception {
+		System.out.println("Unit test for retrieveByTime");
+		System.out
+				.println("It should retrieve two numeric streams with different rates on a common time base");
+		String datadefValues[][] = {
+				{ null, "NUMERIC_STREAM", null, null, "EEG DATADEF" },
+				{ null, "NUMERIC_STREAM", null, null, "EYE DATADEF" } };
+		String[] doubleColumns = { "datadef_sampling_rate" };
+		Double[][] doubleValues = { { 4.0 }, { 2.0 } };
+		String[] datadefUuids = md.addRows("datadefs",
+				md.getColumnNames("datadefs"), datadefValues, doubleColumns,
+				doubleValues);
+		NumericStreams ns = new NumericStreams(md.getConnection());
+		double[][] eeg = { { 0.0, 1.0, 2.0, 3.0, 4.0 } };
+		double[] eegTimes = { 0, .25, .5, .75, 1.0 };
+		ns.reset(datadefUuids[0]);
+		ns.save(eeg, eegTimes, 1);
+		double[][] eye = { { 0.0, 10.0, 20.0 }, { 5.0, 5.0, 5.0 } };
+		double[] eyeTimes = { 0, .5, 1.0 };
+		ns.reset(datadefUuids[1]);
+		ns.save(eye, eyeTimes, 1);
+		double[][][] actual = NumericStreams.retrieveByTime(
+				md.getConnection(), datadefUuids, 0, 1, 4);
+		double[] expectedTimes = { 0, .25, .5, .75, 1.0 };
+		System.out.println("--It should return a common time base");
+		assertTrue("Common times are not equal", Arrays.equals(
+				expectedTimes, NumericStreams.getCommonTimes(0, 1, 4)));
+		double[][] expectedEeg = { { 0.0 }, { 1.0 }, { 2.0 }, { 3.0 },
+				{ 4.0 } };
+		double[][] expectedEye = { { 0.0, 5.0 }, { 5.0, 5.0 },
+				{ 10.0, 5.0 }, { 15.0, 5.0 }, { 20.0, 5.0 } };
+		System.out
+				.println("--It should return the streams in the order of the data definitions");
+		assertTrue("EEG stream returned is not equal",
+				Arrays.deepEquals(expectedEeg, actual[0]));
+		System.out
+				.println("--It should interpolate the slower stream on the common time base");
+		assertTrue("Eye stream returned is not equal",
+				Arrays.deepEquals(expectedEye, actual[1]));
+		System.out
+				.println("--It should reject a data definition given twice");
+		try {
+			NumericStreams.retrieveByTime(md.getConnection(), new String[] {
+					datadefUuids[0], datadefUuids[0] }, 0, 1, 4);
+			fail("A duplicate data definition is accepted");
+		} catch (MobbedException ex) {
+			// expected
+		}
+	}
+
 	@BeforeClass
 	public static void setup() throws Exception {
 		try {
@@ -84,4 +386,14 @@ public class TestNumericStreams {
 		}
 		return temp;
 	}
+
+	static boolean isWaitingForLock(Statement stmt) throws Exception {
+		ResultSet rs = stmt
+				.executeQuery("SELECT COUNT(*) FROM pg_locks WHERE NOT granted"
+						+ " AND relation = 'numeric_streams'::regclass");
+		rs.next();
+		boolean waiting = rs.getLong(1) > 0;
+		rs.close();
+		return waiting;
+	}
 }
@@ -199,9 +199,10 @@ CREATE TABLE numeric_streams
   numeric_stream double precision[],
   PRIMARY KEY (numeric_stream_datadef_uuid, numeric_stream_record_position)
 )
-WITH (
-  OIDS=FALSE
-);
+PARTITION BY LIST (numeric_stream_datadef_uuid);
+
+-- execute
+CREATE TABLE numeric_streams_default PARTITION OF numeric_streams DEFAULT;
 
 -- execute
 CREATE TABLE subjects
@@ -288,6 +289,29 @@ ALTER TABLE xml_values ADD FOREIGN KEY (xml_value_datadef_uuid) REFERENCES datad
 -- execute
 ALTER TABLE xml_streams ADD FOREIGN KEY (xml_stream_datadef_uuid) REFERENCES datadefs (datadef_uuid);
 
+-- execute
+CREATE INDEX tags_upper_name_idx ON tags (UPPER(tag_name), tag_entity_uuid);
+-- execute
+CREATE INDEX tags_entity_uuid_idx ON tags (tag_entity_uuid);
+-- execute
+CREATE INDEX attributes_upper_value_idx ON attributes (UPPER(attribute_value), attribute_organizational_uuid);
+-- execute
+CREATE INDEX attributes_organizational_uuid_idx ON attributes (attribute_organizational_uuid);
+-- execute
+CREATE INDEX attributes_entity_uuid_idx ON attributes (attribute_entity_uuid);
+-- execute
+CREATE INDEX collections_entity_uuid_idx ON collections (collection_entity_uuid);
+-- execute
+CREATE INDEX comments_entity_uuid_idx ON comments (comment_entity_uuid);
+-- execute
+CREATE INDEX datamaps_entity_uuid_idx ON datamaps (datamap_entity_uuid);
+-- execute
+CREATE INDEX elements_dataset_uuid_idx ON elements (element_dataset_uuid);
+-- execute
+CREATE INDEX events_dataset_uuid_idx ON events (event_dataset_uuid);
+-- execute
+CREATE INDEX events_type_uuid_idx ON events (event_type_uuid);
+
 -- execute
 INSERT INTO CONTACTS (CONTACT_UUID, CONTACT_FIRST_NAME, CONTACT_LAST_NAME) 
 VALUES ('691df7dd-ce3e-47f8-bea5-6a632c6fcccb', 'System', 'User');